@@ -21,18 +21,35 @@
 #define TFLITE_MINIMAL_CHECK(x)                              \
   if (!(x)) {                                                \
     fprintf(stderr, "Error at %s:%d", __FILE__, __LINE__); \
-    exit(1);                                                 \
+    return -1;                                               \
   }
 
+TFLiteEngine::TFLiteEngine()
+    : m_tflite(new whisper_tflite()),
+      m_vocab(new whisper_vocab()),
+      m_filters(new whisper_filters()),
+      m_mel(new whisper_mel()) {
+}
+
+TFLiteEngine::~TFLiteEngine() {
+    freeModel();
+}
+
 int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
     std::cout << "Entering " << __func__ << "()" << std::endl;
 
+    // The loaded state belongs to this engine only; other engines load their own model
     timeval start_time{}, end_time{};
-    if (!g_whisper_tflite.is_whisper_tflite_initialized) {
+    if (!m_tflite->interpreter) {
 
         gettimeofday(&start_time, NULL);
         std::cout << "Initializing TFLite..." << std::endl;
 
+        // Everything is built in locals and only moved into the engine once the interpreter is
+        // ready, so a failed load leaves the engine as it was and can simply be retried
+        whisper_filters filters;
+        whisper_vocab vocab;
+
         /////////////// Load filters and vocab data ///////////////
 
        const char* vocabData = nullptr;
@@ -64,6 +81,7 @@ int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
         filters.data.resize(filters.n_mel * filters.n_fft);
         std::memcpy(filters.data.data(), vocabData, filters.data.size() * sizeof(float));
         vocabData += filters.data.size() * sizeof(float);
+        filters.compute_bounds();
 
         // Load vocab
         int n_vocab = 0;
@@ -72,91 +90,85 @@ int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
 
         std::cout << "n_vocab:" << n_vocab << std::endl;
 
+        // Size the flat store up front from the length prefixes, then copy the token bytes
+        const char* tokenData = vocabData;
+        size_t n_bytes = 0;
+        for (int i = 0; i < n_vocab; i++) {
+            int len = 0;
+            std::memcpy(&len, tokenData, sizeof(len));
+            tokenData += sizeof(len) + len;
+            n_bytes += len;
+        }
+        vocab.reserve(51865, n_bytes + 16 * (51865 - n_vocab));
+
         for (int i = 0; i < n_vocab; i++) {
             int len = 0;
             std::memcpy(&len, vocabData, sizeof(len));
             vocabData += sizeof(len);
 
-            std::string word(vocabData, len);
+            vocab.add_token(vocabData, len);
             vocabData += len;
-
-            g_vocab.id_to_token[i] = word;
         }
 
         // add additional vocab ids
         int n_vocab_additional = 51864;
         if (isMultilingual) {
             n_vocab_additional = 51865;
-            g_vocab.token_eot++;
-            g_vocab.token_sot++;
-            g_vocab.token_prev++;
-            g_vocab.token_solm++;
-            g_vocab.token_not++;
-            g_vocab.token_beg++;
+            vocab.token_eot++;
+            vocab.token_sot++;
+            vocab.token_prev++;
+            vocab.token_solm++;
+            vocab.token_not++;
+            vocab.token_beg++;
         }
 
         for (int i = n_vocab; i < n_vocab_additional; i++) {
             std::string word;
-            if (i > g_vocab.token_beg) {
-                word = "[_TT_" + std::to_string(i - g_vocab.token_beg) + "]";
-            } else if (i == g_vocab.token_eot) {
+            if (i > vocab.token_beg) {
+                word = "[_TT_" + std::to_string(i - vocab.token_beg) + "]";
+            } else if (i == vocab.token_eot) {
                 word = "[_EOT_]";
-            } else if (i == g_vocab.token_sot) {
+            } else if (i == vocab.token_sot) {
                 word = "[_SOT_]";
-            } else if (i == g_vocab.token_prev) {
+            } else if (i == vocab.token_prev) {
                 word = "[_PREV_]";
-            } else if (i == g_vocab.token_not) {
+            } else if (i == vocab.token_not) {
                 word = "[_NOT_]";
-            } else if (i == g_vocab.token_beg) {
+            } else if (i == vocab.token_beg) {
                 word = "[_BEG_]";
             } else {
                 word = "[_extra_token_" + std::to_string(i) + "]";
             }
-            g_vocab.id_to_token[i] = word;
-            // printf("%s: g_vocab[%d] = '%s'", __func__, i, word.c_str());
+            vocab.add_token(word.data(), word.size());
+            // printf("%s: m_vocab[%d] = '%s'", __func__, i, word.c_str());
         }
 
 
-        /////////////// Load tflite model buffer ///////////////
+        /////////////// Load tflite model ///////////////
 
-        // Open the TFLite model file for reading
-        std::ifstream modelFile(modelPath, std::ios::binary | std::ios::ate);
-        if (!modelFile.is_open()) {
-            std::cerr << "Unable to open model file: " << modelPath << std::endl;
+        // Memory-map the model read-only: pages are file-backed and shared with every other
+        // engine on the same file, and only the pages actually used are read in
+        std::unique_ptr<tflite::FlatBufferModel> model = tflite::FlatBufferModel::BuildFromFile(modelPath);
+        if (model == nullptr) {
+            std::cerr << "Unable to load model file: " << modelPath << std::endl;
             return -1;
         }
 
-        // Get the size of the model file
-        std::streamsize size = modelFile.tellg();
-        modelFile.seekg(0, std::ios::beg);
-
-        // Allocate memory for the model buffer
-        char *buffer = new char[size];
-
-        // Read the model data into the buffer
-        if (modelFile.read(buffer, size)) {
-            modelFile.close();
-        } else {
-            std::cerr << "Error reading model data from file." << std::endl;
-        }
-
-        g_whisper_tflite.size = size;
-        g_whisper_tflite.buffer = buffer;
-
-        g_whisper_tflite.model = tflite::FlatBufferModel::BuildFromBuffer(g_whisper_tflite.buffer, g_whisper_tflite.size);
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.model != nullptr);
-
         // Build the interpreter with the InterpreterBuilder.
-        tflite::InterpreterBuilder builder(*(g_whisper_tflite.model), g_whisper_tflite.resolver);
+        tflite::InterpreterBuilder builder(*model, m_tflite->resolver);
 
-        builder(&(g_whisper_tflite.interpreter));
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter != nullptr);
+        std::unique_ptr<tflite::Interpreter> interpreter;
+        builder(&interpreter);
+        TFLITE_MINIMAL_CHECK(interpreter != nullptr);
 
         // Allocate tensor buffers.
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter->AllocateTensors() == kTfLiteOk);
+        TFLITE_MINIMAL_CHECK(interpreter->AllocateTensors() == kTfLiteOk);
 
-        g_whisper_tflite.input = g_whisper_tflite.interpreter->typed_input_tensor<float>(0);
-        g_whisper_tflite.is_whisper_tflite_initialized = true;
+        *m_filters = std::move(filters);
+        *m_vocab = std::move(vocab);
+        m_tflite->model = std::move(model);
+        m_tflite->interpreter = std::move(interpreter);
+        m_tflite->input = m_tflite->interpreter->typed_input_tensor<float>(0);
 
         gettimeofday(&end_time, NULL);
         std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
@@ -166,90 +178,145 @@ int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
     return 0;
 }
 
-std::string TFLiteEngine::transcribeBuffer(std::vector<float> samples) {
+std::string TFLiteEngine::transcribeBuffer(const std::vector<float>& samples) {
+    return transcribeBuffer(samples.data(), static_cast<int>(samples.size()));
+}
+
+std::string TFLiteEngine::transcribeBuffer(const float* samples, int n_samples) {
+    if (!computeMel(samples, n_samples)) {
+        return "";
+    }
+    return runInference();
+}
+
+bool TFLiteEngine::computeMel(const float* samples, int n_samples) {
     timeval start_time{}, end_time{};
     gettimeofday(&start_time, NULL);
 
-    // Hack if the audio file size is less than 30ms append with 0's
-    samples.resize((WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE), 0);
-    const auto processor_count = std::thread::hardware_concurrency();
+    // The model always sees 30 seconds: longer input is truncated, shorter input is treated as
+    // zero-padded without materialising the padding or computing its all-zero frames
+    const int n_samples_padded = WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
+    n_samples = std::min(n_samples, n_samples_padded);
+    if (!m_mel_workspace) {
+        const int processor_count = std::max(1u, std::thread::hardware_concurrency());
+        m_mel_workspace.reset(new whisper_mel_workspace(WHISPER_N_FFT, processor_count));
+    }
 
-    if (!log_mel_spectrogram(samples.data(), samples.size(), WHISPER_SAMPLE_RATE, WHISPER_N_FFT,
-                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, processor_count, filters, mel)) {
+    if (!log_mel_spectrogram(samples, n_samples, n_samples_padded, WHISPER_N_FFT, WHISPER_HOP_LENGTH,
+                             WHISPER_N_MEL, *m_mel_workspace, *m_filters, *m_mel)) {
         std::cerr << "Failed to compute mel spectrogram" << std::endl;
-        return "";
+        return false;
     }
 
     gettimeofday(&end_time, NULL);
     std::cout << "Time taken for Spectrogram: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
 
     if (INFERENCE_ON_AUDIO_FILE) {
-        memcpy(g_whisper_tflite.input, mel.data.data(), mel.n_mel * mel.n_len * sizeof(float));
+        memcpy(m_tflite->input, m_mel->data.data(), m_mel->n_mel * m_mel->n_len * sizeof(float));
     } else {
-        memcpy(g_whisper_tflite.input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
+        memcpy(m_tflite->input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
     } // end of audio file processing
 
-    gettimeofday(&start_time, NULL);
+    return true;
+}
 
-    // Run inference
-    g_whisper_tflite.interpreter->SetNumThreads(processor_count);
-    if (g_whisper_tflite.interpreter->Invoke() != kTfLiteOk) {
+std::string TFLiteEngine::runInference() {
+    int output_size = 0;
+    const int *output_int = invoke(output_size);
+    if (output_int == nullptr) {
         return "";
     }
 
-    gettimeofday(&end_time, NULL);
-    std::cout << "Time taken for Interpreter: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
-
-    int output = g_whisper_tflite.interpreter->outputs()[0];
-    TfLiteTensor *output_tensor = g_whisper_tflite.interpreter->tensor(output);
-    TfLiteIntArray *output_dims = output_tensor->dims;
-    // assume output dims to be something like (1, 1, ... ,size)
-    auto output_size = output_dims->data[output_dims->size - 1];
+    // Decode in place from the output tensor into the reusable text buffer
+    m_text.clear();
+    whisper_decode_tokens(*m_vocab, output_int, output_size, m_text);
 
-    int *output_int = g_whisper_tflite.interpreter->typed_output_tensor<int>(0);
-    std::string text = "";
+    return m_text;
+}
 
-    for (int i = 0; i < output_size; i++) {
-        if (output_int[i] == g_vocab.token_eot) {
-            break;
-        }
+float* TFLiteEngine::sampleBuffer(int& n_samples) {
+    n_samples = std::max(0, std::min(n_samples, WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE));
+    m_samples.resize(WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE);
+    return m_samples.data();
+}
 
-        if (output_int[i] < g_vocab.token_eot) {
-            text += whisper_token_to_str(output_int[i]);
-        }
+int TFLiteEngine::runInferenceTokens(int* tokens, int capacity) {
+    int output_size = 0;
+    const int *output_int = invoke(output_size);
+    if (output_int == nullptr) {
+        return -1;
     }
 
-    return text;
+    int n_tokens = std::min(output_size, capacity);
+    memcpy(tokens, output_int, n_tokens * sizeof(int));
+    return n_tokens;
 }
 
-std::string TFLiteEngine::transcribeFile(const char *waveFile) {
-	std::vector<float> pcmf32 = readWAVFile(waveFile);
-    pcmf32.resize((WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE), 0);
-    std::string text = transcribeBuffer(pcmf32);
-    return text;
+int TFLiteEngine::getMaxTokens() const {
+    if (!m_tflite->interpreter) {
+        return 0;
+    }
+
+    // assume output dims to be something like (1, 1, ... ,size)
+    int output = m_tflite->interpreter->outputs()[0];
+    TfLiteIntArray *output_dims = m_tflite->interpreter->tensor(output)->dims;
+    return output_dims->data[output_dims->size - 1];
 }
 
-void TFLiteEngine::freeModel() {
-    std::cout << "Entering " << __func__ << "()" << std::endl;
+// Run the interpreter; returns the output token ids in place, or nullptr on failure
+const int* TFLiteEngine::invoke(int& n_tokens) {
+    timeval start_time{}, end_time{};
+    gettimeofday(&start_time, NULL);
+
+    // Run inference
+    const auto processor_count = std::thread::hardware_concurrency();
+    m_tflite->interpreter->SetNumThreads(processor_count);
+    if (m_tflite->interpreter->Invoke() != kTfLiteOk) {
+        return nullptr;
+    }
 
-    if (g_whisper_tflite.interpreter)
-        g_whisper_tflite.interpreter.reset();  // Reset interpreter to release resources
+    gettimeofday(&end_time, NULL);
+    std::cout << "Time taken for Interpreter: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
 
-    if (g_whisper_tflite.model)
-        g_whisper_tflite.model.reset();        // Reset model to free memory
+    n_tokens = getMaxTokens();
+    return m_tflite->interpreter->typed_output_tensor<int>(0);
+}
 
-    if (g_whisper_tflite.buffer) {
-        std::cout << __func__ << ": free buffer " << g_whisper_tflite.buffer << " memory" << std::endl;
-        delete[] g_whisper_tflite.buffer;
+std::string TFLiteEngine::transcribeFile(const char *waveFile, int startSample) {
+    int n_samples = readWindow(waveFile, startSample);
+    if (n_samples < 0) {
+        return "";
     }
+    return transcribeBuffer(m_samples.data(), n_samples);
+}
 
-    // Set the flag to false to avoid issues in the re-initialization of the model
-    if (g_whisper_tflite.is_whisper_tflite_initialized) {
-        g_whisper_tflite.is_whisper_tflite_initialized = false;
+int TFLiteEngine::transcribeFileTokens(const char *waveFile, int* tokens, int capacity, int startSample) {
+    int n_samples = readWindow(waveFile, startSample);
+    if (n_samples < 0 || !computeMel(m_samples.data(), n_samples)) {
+        return -1;
     }
+    return runInferenceTokens(tokens, capacity);
+}
+
+// Read the 30 second window starting at startSample into m_samples; the rest of the file is
+// never read. Returns the number of samples read, -1 if the file cannot be opened.
+int TFLiteEngine::readWindow(const char *waveFile, int startSample) {
+    const int n_samples_window = WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
+    m_samples.resize(n_samples_window);
+    return readWAVFile(waveFile, startSample, n_samples_window, m_samples.data());
+}
+
+void TFLiteEngine::freeModel() {
+    std::cout << "Entering " << __func__ << "()" << std::endl;
+
+    if (m_tflite->interpreter)
+        m_tflite->interpreter.reset();  // Reset interpreter to release resources
+
+    if (m_tflite->model)
+        m_tflite->model.reset();        // Reset model to unmap the file
 
     // Reset the whisper_vocab structure to clear the vocab data
-    g_vocab.reset();
+    m_vocab->reset();
 
     std::cout << "Exiting " << __func__ << "()" << std::endl;
 }
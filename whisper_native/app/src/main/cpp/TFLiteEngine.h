@@ -1,22 +1,68 @@
 #ifndef _TFLITEENGINE_H_
 #define _TFLITEENGINE_H_
 
+#include <memory>
 #include <string>
 #include <vector>
 
+// Defined in whisper.h
+struct whisper_tflite;
+struct whisper_vocab;
+struct whisper_filters;
+struct whisper_mel;
+struct whisper_mel_workspace;
+
+// Each engine owns its model, vocabulary and buffers, so several engines (e.g. English-only and
+// multilingual) can be loaded side by side and run on different threads. A single engine is not
+// thread-safe.
 class TFLiteEngine {
 public:
-    TFLiteEngine() {};
-    ~TFLiteEngine() {};
+    TFLiteEngine();
+    ~TFLiteEngine();
 
     int loadModel(const char *modelPath, const bool isMultilingual);
     void freeModel();
 
-    std::string transcribeBuffer(std::vector<float> samples);
-    std::string transcribeFile(const char* waveFile);
+    std::string transcribeBuffer(const std::vector<float>& samples);
+    std::string transcribeBuffer(const float* samples, int n_samples);
+
+    // Transcribe the 30 seconds of a WAV file starting at startSample
+    std::string transcribeFile(const char* waveFile, int startSample = 0);
+
+    // transcribeBuffer in two steps. Samples are only read by computeMel, so a caller's buffer
+    // is free again before runInference.
+    bool computeMel(const float* samples, int n_samples);
+    std::string runInference();
+
+    // Engine-owned buffer for n_samples of input (truncated to 30 seconds), for callers that
+    // copy audio in, e.g. from a Java array, before computeMel. Valid until the next call.
+    float* sampleBuffer(int& n_samples);
+
+    // Token id variants for callers that decode themselves: copy up to capacity output token
+    // ids (EOT and padding included) into tokens and return the number copied, -1 on failure
+    int runInferenceTokens(int* tokens, int capacity);
+    int transcribeFileTokens(const char* waveFile, int* tokens, int capacity, int startSample = 0);
+
+    // Length of the model's output token sequence, 0 if no model is loaded
+    int getMaxTokens() const;
 
 private:
-    // Add any private members or helper functions as needed
+    const int* invoke(int& n_tokens);
+    int readWindow(const char* waveFile, int startSample);
+
+    std::unique_ptr<whisper_tflite> m_tflite;
+    std::unique_ptr<whisper_vocab> m_vocab;
+    std::unique_ptr<whisper_filters> m_filters;
+    std::unique_ptr<whisper_mel> m_mel;
+
+    // FFT plan, window and worker threads for computeMel, created on first use
+    std::unique_ptr<whisper_mel_workspace> m_mel_workspace;
+
+    // Decoded text of the last transcription, reused across calls
+    std::string m_text;
+
+    // Window read from a WAV file or copied in through sampleBuffer, reused across calls
+    std::vector<float> m_samples;
 };
 
 #endif // _TFLITEENGINE_H_
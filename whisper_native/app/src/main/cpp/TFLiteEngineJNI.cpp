@@ -29,29 +29,81 @@ Java_com_whispertflite_engine_WhisperEngineNative_freeModel(JNIEnv *env, jobject
     delete engine;
 }
 
-// JNI method to transcribe audio buffer
-JNIEXPORT jstring JNICALL
-Java_com_whispertflite_engine_WhisperEngineNative_transcribeBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples) {
+// Token ids are returned instead of strings: NewStringUTF expects modified UTF-8, which mangles
+// supplementary characters, so the Java side decodes with its byte-level detokenizer.
+// Each call writes up to tokensCount ids into tokens[tokensOffset..] of the direct IntBuffer tokens
+// and returns the number written, or -1 on failure.
+
+// Address of tokens[offset], or NULL if tokens is not a direct buffer or [offset, offset + count)
+// does not fit in its capacity
+static int *tokenRange(JNIEnv *env, jobject tokens, jint offset, jint count) {
+    int *data = static_cast<int *>(env->GetDirectBufferAddress(tokens));
+    jlong capacity = env->GetDirectBufferCapacity(tokens);
+    if (data == NULL || offset < 0 || count < 0 || static_cast<jlong>(offset) + count > capacity) {
+        return NULL;
+    }
+    return data + offset;
+}
+
+// JNI method to get the length of the output token sequence
+JNIEXPORT jint JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_getMaxTokens(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return static_cast<jint>(engine->getMaxTokens());
+}
+
+// JNI method to transcribe samples[offset .. offset + length) of a float array.
+// The window (at most 30 seconds) is copied into an engine buffer instead of pinning the array
+// for the whole multi-threaded mel computation: the copy takes well under a millisecond, and a
+// live ring array stays free for the recorder meanwhile.
+JNIEXPORT jint JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples, jint offset, jint length, jobject tokens, jint tokensOffset, jint tokensCount) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    int *tokenData = tokenRange(env, tokens, tokensOffset, tokensCount);
+    if (tokenData == NULL) {
+        return -1;
+    }
 
-    // Convert jfloatArray to std::vector<float>
-    jsize len = env->GetArrayLength(samples);
-    jfloat *data = env->GetFloatArrayElements(samples, 0);
-    std::vector<float> sampleVector(data, data + len);
-    env->ReleaseFloatArrayElements(samples, data, 0);
+    int n_samples = length;
+    float *data = engine->sampleBuffer(n_samples);
+    env->GetFloatArrayRegion(samples, offset, n_samples, data);
+    if (env->ExceptionCheck() || !engine->computeMel(data, n_samples)) {
+        return -1;
+    }
 
-    std::string result = engine->transcribeBuffer(sampleVector);
-    return env->NewStringUTF(result.c_str());
+    return static_cast<jint>(engine->runInferenceTokens(tokenData, tokensCount));
+}
+
+// JNI method to transcribe samples read in place from a direct FloatBuffer/ByteBuffer,
+// starting at float index offset
+JNIEXPORT jint JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeDirectBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jobject samples, jint offset, jint length, jobject tokens, jint tokensOffset, jint tokensCount) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    int *tokenData = tokenRange(env, tokens, tokensOffset, tokensCount);
+    const float *data = static_cast<const float *>(env->GetDirectBufferAddress(samples));
+    if (tokenData == NULL || data == NULL) {
+        return -1;
+    }
+
+    if (!engine->computeMel(data + offset, length)) {
+        return -1;
+    }
+    return static_cast<jint>(engine->runInferenceTokens(tokenData, tokensCount));
 }
 
 // JNI method to transcribe audio file
-JNIEXPORT jstring JNICALL
-Java_com_whispertflite_engine_WhisperEngineNative_transcribeFile(JNIEnv *env, jobject thiz, jlong nativePtr, jstring waveFile) {
+JNIEXPORT jint JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeFile(JNIEnv *env, jobject thiz, jlong nativePtr, jstring waveFile, jobject tokens, jint tokensOffset, jint tokensCount) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    int *tokenData = tokenRange(env, tokens, tokensOffset, tokensCount);
+    if (tokenData == NULL) {
+        return -1;
+    }
+
     const char *cWaveFile = env->GetStringUTFChars(waveFile, NULL);
-    std::string result = engine->transcribeFile(cWaveFile);
+    int result = engine->transcribeFileTokens(cWaveFile, tokenData, tokensCount);
     env->ReleaseStringUTFChars(waveFile, cWaveFile);
-    return env->NewStringUTF(result.c_str());
+    return static_cast<jint>(result);
 }
 
 } // extern "C"
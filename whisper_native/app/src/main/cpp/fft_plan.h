@@ -0,0 +1,268 @@
+#ifndef _FFT_PLAN_H_
+#define _FFT_PLAN_H_
+
+#include <cmath>
+#include <stdexcept>
+#include <string>
+#include <vector>
+
+// Precomputed plan for a fixed-size complex FFT.
+// Twiddle factors and the digit-reversal permutation are built once in the constructor, so a
+// transform does no trig and no allocation. The plan is immutable and can be shared by any
+// number of threads; each thread passes in its own output buffer.
+// Supported sizes are products of 2, 4 and 5 (e.g. WHISPER_N_FFT / 2 = 200 = 4 * 2 * 5 * 5).
+class fft_plan {
+public:
+    explicit fft_plan(int n) : n(n) {
+        if (n < 1) {
+            throw std::invalid_argument("Invalid FFT size: " + std::to_string(n));
+        }
+
+        // Split n into radix-4 stages first, then radix 2 and radix 5
+        int rem = n;
+        while (rem % 4 == 0) { radices.push_back(4); rem /= 4; }
+        while (rem % 2 == 0) { radices.push_back(2); rem /= 2; }
+        while (rem % 5 == 0) { radices.push_back(5); rem /= 5; }
+        if (rem != 1) {
+            throw std::invalid_argument("FFT size must be a product of 2, 4 and 5: " + std::to_string(n));
+        }
+
+        // Digit-reversed position of every input index for the chosen radix sequence
+        permutation.resize(n);
+        for (int i = 0; i < n; i++) {
+            int pos = 0;
+            int r = i;
+            int size = n;
+            for (int radix : radices) {
+                size /= radix;
+                pos += (r % radix) * size;
+                r /= radix;
+            }
+            permutation[i] = pos;
+        }
+
+        // W_n^j = cos(2*pi*j/n) - i*sin(2*pi*j/n)
+        cos_table.resize(n);
+        sin_table.resize(n);
+        for (int j = 0; j < n; j++) {
+            double theta = 2.0 * M_PI * j / n;
+            cos_table[j] = static_cast<float>(cos(theta));
+            sin_table[j] = static_cast<float>(sin(theta));
+        }
+    }
+
+    int size() const {
+        return n;
+    }
+
+    // Interleaved complex input of 2 * n floats -> interleaved complex output of 2 * n floats.
+    // in and out must not overlap.
+    void forward(const float* in, float* out) const {
+        for (int i = 0; i < n; i++) {
+            const int pos = 2 * permutation[i];
+            out[pos + 0] = in[2 * i + 0];
+            out[pos + 1] = in[2 * i + 1];
+        }
+
+        // In-place iterative decimation-in-time passes over digit-reversed data, innermost radix first
+        int len = 1;
+        for (int s = static_cast<int>(radices.size()) - 1; s >= 0; s--) {
+            const int radix = radices[s];
+            const int span = len;
+            len *= radix;
+            const int stride = n / len;
+
+            if (radix == 2) {
+                radix2(out, span, len, stride);
+            } else if (radix == 4) {
+                radix4(out, span, len, stride);
+            } else {
+                radix5(out, span, len, stride);
+            }
+        }
+    }
+
+private:
+    // x <- x * conj-twiddle W^w, i.e. (xr + i xi) * (cos - i sin)
+    inline void twiddle(const float* x, int w, float& yr, float& yi) const {
+        yr = x[0] * cos_table[w] + x[1] * sin_table[w];
+        yi = x[1] * cos_table[w] - x[0] * sin_table[w];
+    }
+
+    void radix2(float* x, int span, int len, int stride) const {
+        for (int block = 0; block < n; block += len) {
+            for (int k = 0; k < span; k++) {
+                float* a = x + 2 * (block + k);
+                float* b = a + 2 * span;
+
+                float tr, ti;
+                twiddle(b, k * stride, tr, ti);
+
+                b[0] = a[0] - tr;
+                b[1] = a[1] - ti;
+                a[0] += tr;
+                a[1] += ti;
+            }
+        }
+    }
+
+    void radix4(float* x, int span, int len, int stride) const {
+        for (int block = 0; block < n; block += len) {
+            for (int k = 0; k < span; k++) {
+                float* x0 = x + 2 * (block + k);
+                float* x1 = x0 + 2 * span;
+                float* x2 = x1 + 2 * span;
+                float* x3 = x2 + 2 * span;
+
+                const int w1 = k * stride;
+                float y1r, y1i, y2r, y2i, y3r, y3i;
+                twiddle(x1, w1, y1r, y1i);
+                twiddle(x2, 2 * w1, y2r, y2i);
+                twiddle(x3, 3 * w1, y3r, y3i);
+
+                const float s02r = x0[0] + y2r;
+                const float s02i = x0[1] + y2i;
+                const float d02r = x0[0] - y2r;
+                const float d02i = x0[1] - y2i;
+                const float s13r = y1r + y3r;
+                const float s13i = y1i + y3i;
+                const float d13r = y1r - y3r;
+                const float d13i = y1i - y3i;
+
+                // X1 = d02 - i * d13, X3 = d02 + i * d13
+                x0[0] = s02r + s13r;
+                x0[1] = s02i + s13i;
+                x1[0] = d02r + d13i;
+                x1[1] = d02i - d13r;
+                x2[0] = s02r - s13r;
+                x2[1] = s02i - s13i;
+                x3[0] = d02r - d13i;
+                x3[1] = d02i + d13r;
+            }
+        }
+    }
+
+    void radix5(float* x, int span, int len, int stride) const {
+        static const float cos1 = static_cast<float>(cos(2.0 * M_PI / 5.0));
+        static const float cos2 = static_cast<float>(cos(4.0 * M_PI / 5.0));
+        static const float sin1 = static_cast<float>(sin(2.0 * M_PI / 5.0));
+        static const float sin2 = static_cast<float>(sin(4.0 * M_PI / 5.0));
+
+        for (int block = 0; block < n; block += len) {
+            for (int k = 0; k < span; k++) {
+                float* x0 = x + 2 * (block + k);
+                float* x1 = x0 + 2 * span;
+                float* x2 = x1 + 2 * span;
+                float* x3 = x2 + 2 * span;
+                float* x4 = x3 + 2 * span;
+
+                const int w1 = k * stride;
+                const float y0r = x0[0];
+                const float y0i = x0[1];
+                float y1r, y1i, y2r, y2i, y3r, y3i, y4r, y4i;
+                twiddle(x1, w1, y1r, y1i);
+                twiddle(x2, 2 * w1, y2r, y2i);
+                twiddle(x3, 3 * w1, y3r, y3i);
+                twiddle(x4, 4 * w1, y4r, y4i);
+
+                const float t1r = y1r + y4r;
+                const float t1i = y1i + y4i;
+                const float t2r = y2r + y3r;
+                const float t2i = y2i + y3i;
+                const float t3r = y1r - y4r;
+                const float t3i = y1i - y4i;
+                const float t4r = y2r - y3r;
+                const float t4i = y2i - y3i;
+
+                const float a1r = y0r + cos1 * t1r + cos2 * t2r;
+                const float a1i = y0i + cos1 * t1i + cos2 * t2i;
+                const float a2r = y0r + cos2 * t1r + cos1 * t2r;
+                const float a2i = y0i + cos2 * t1i + cos1 * t2i;
+
+                const float b1r = sin1 * t3r + sin2 * t4r;
+                const float b1i = sin1 * t3i + sin2 * t4i;
+                const float b2r = sin2 * t3r - sin1 * t4r;
+                const float b2i = sin2 * t3i - sin1 * t4i;
+
+                // X1/X4 = a1 -/+ i * b1, X2/X3 = a2 -/+ i * b2
+                x0[0] = y0r + t1r + t2r;
+                x0[1] = y0i + t1i + t2i;
+                x1[0] = a1r + b1i;
+                x1[1] = a1i - b1r;
+                x4[0] = a1r - b1i;
+                x4[1] = a1i + b1r;
+                x2[0] = a2r + b2i;
+                x2[1] = a2i - b2r;
+                x3[0] = a2r - b2i;
+                x3[1] = a2i + b2r;
+            }
+        }
+    }
+
+    int n;
+    std::vector<int> radices;
+    std::vector<int> permutation;
+    std::vector<float> cos_table;
+    std::vector<float> sin_table;
+};
+
+// FFT of n real samples producing only the non-redundant bins 0..n/2.
+// The samples are read as n/2 interleaved complex values, transformed with a half-size
+// fft_plan and untangled with a post-twiddle:
+//   X[k] = E[k] + W_n^k * O[k], E[k] = (Z[k] + conj(Z[n/2-k])) / 2, O[k] = -i * (Z[k] - conj(Z[n/2-k])) / 2
+class real_fft_plan {
+public:
+    explicit real_fft_plan(int n) : n(n), half(n / 2), half_plan(n / 2) {
+        if (n < 2 || n % 2 != 0) {
+            throw std::invalid_argument("Real FFT size must be even: " + std::to_string(n));
+        }
+
+        cos_table.resize(half + 1);
+        sin_table.resize(half + 1);
+        for (int k = 0; k <= half; k++) {
+            double theta = 2.0 * M_PI * k / n;
+            cos_table[k] = static_cast<float>(cos(theta));
+            sin_table[k] = static_cast<float>(sin(theta));
+        }
+    }
+
+    int size() const {
+        return n;
+    }
+
+    // Number of output bins, n / 2 + 1
+    int bin_count() const {
+        return half + 1;
+    }
+
+    // in: n real samples
+    // scratch: n floats, holds the half-size complex FFT
+    // out: interleaved complex (re, im) bins 0..n/2, 2 * (n / 2 + 1) floats
+    void forward(const float* in, float* scratch, float* out) const {
+        half_plan.forward(in, scratch);
+
+        for (int k = 0; k <= half; k++) {
+            const int a = 2 * (k % half);
+            const int b = 2 * ((half - k) % half);
+
+            const float er = 0.5f * (scratch[a + 0] + scratch[b + 0]);
+            const float ei = 0.5f * (scratch[a + 1] - scratch[b + 1]);
+            const float odr = 0.5f * (scratch[a + 1] + scratch[b + 1]);
+            const float odi = -0.5f * (scratch[a + 0] - scratch[b + 0]);
+
+            const float wr = cos_table[k];
+            const float wi = sin_table[k];
+            out[2 * k + 0] = er + wr * odr + wi * odi;
+            out[2 * k + 1] = ei + wr * odi - wi * odr;
+        }
+    }
+
+private:
+    int n;
+    int half;
+    fft_plan half_plan;
+    std::vector<float> cos_table;
+    std::vector<float> sin_table;
+};
+
+#endif // _FFT_PLAN_H_
@@ -0,0 +1,323 @@
+#ifndef _MEL_KERNELS_H_
+#define _MEL_KERNELS_H_
+
+#include <cstdint>
+#include <cstring>
+
+// Vectorised building blocks for log_mel_spectrogram.
+// Each backend wraps its vector type in the same handful of mel_v* helpers and the kernels below
+// are written once against them:
+//   NEON        ARM (arm64-v8a, armeabi-v7a built with NEON), 4 lanes
+//   AVX2 + FMA  x86_64 built with -mavx2 -mfma (see WHISPER_AVX2 in CMakeLists.txt), 8 lanes
+//   SSE2        any other x86_64 / x86 build, 4 lanes
+//   scalar      everything else, 1 lane
+// All kernels accumulate in float and use mel_log10, a polynomial approximation (Cephes logf,
+// about 1e-7 relative error), so results differ from the double / libm reference in whisper.h
+// only by rounding.
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define MEL_KERNELS_NEON 1
+#define MEL_KERNELS_NAME "NEON"
+typedef float32x4_t mel_vf;
+static const int MEL_LANES = 4;
+
+static inline mel_vf mel_vload(const float* p) { return vld1q_f32(p); }
+static inline void mel_vstore(float* p, mel_vf v) { vst1q_f32(p, v); }
+static inline mel_vf mel_vset(float x) { return vdupq_n_f32(x); }
+static inline mel_vf mel_vadd(mel_vf a, mel_vf b) { return vaddq_f32(a, b); }
+static inline mel_vf mel_vsub(mel_vf a, mel_vf b) { return vsubq_f32(a, b); }
+static inline mel_vf mel_vmul(mel_vf a, mel_vf b) { return vmulq_f32(a, b); }
+static inline mel_vf mel_vfma(mel_vf a, mel_vf b, mel_vf c) { return vmlaq_f32(c, a, b); } // a * b + c
+static inline mel_vf mel_vmax(mel_vf a, mel_vf b) { return vmaxq_f32(a, b); }
+
+static inline float mel_vhsum(mel_vf v) {
+    float32x2_t s = vadd_f32(vget_low_f32(v), vget_high_f32(v));
+    return vget_lane_f32(vpadd_f32(s, s), 0);
+}
+
+static inline float mel_vhmax(mel_vf v) {
+    float32x2_t m = vmax_f32(vget_low_f32(v), vget_high_f32(v));
+    return vget_lane_f32(vpmax_f32(m, m), 0);
+}
+
+// 1.0f where a < b, 0.0f elsewhere
+static inline mel_vf mel_vless(mel_vf a, mel_vf b) {
+    return vreinterpretq_f32_u32(vandq_u32(vcltq_f32(a, b), vreinterpretq_u32_f32(vdupq_n_f32(1.0f))));
+}
+
+// Split positive normal x into mantissa in [0.5, 1) and exponent: x = m * 2^e
+static inline mel_vf mel_vfrexp(mel_vf x, mel_vf& e) {
+    int32x4_t bits = vreinterpretq_s32_f32(x);
+    e = vcvtq_f32_s32(vsubq_s32(vshrq_n_s32(bits, 23), vdupq_n_s32(126)));
+    bits = vorrq_s32(vandq_s32(bits, vdupq_n_s32(0x007fffff)), vdupq_n_s32(0x3f000000));
+    return vreinterpretq_f32_s32(bits);
+}
+
+// Deinterleave 2 * MEL_LANES floats of (re, im) pairs
+static inline void mel_vload2(const float* p, mel_vf& re, mel_vf& im) {
+    float32x4x2_t v = vld2q_f32(p);
+    re = v.val[0];
+    im = v.val[1];
+}
+
+#elif defined(__AVX2__) && defined(__FMA__)
+#include <immintrin.h>
+#define MEL_KERNELS_AVX2 1
+#define MEL_KERNELS_NAME "AVX2"
+typedef __m256 mel_vf;
+static const int MEL_LANES = 8;
+
+static inline mel_vf mel_vload(const float* p) { return _mm256_loadu_ps(p); }
+static inline void mel_vstore(float* p, mel_vf v) { _mm256_storeu_ps(p, v); }
+static inline mel_vf mel_vset(float x) { return _mm256_set1_ps(x); }
+static inline mel_vf mel_vadd(mel_vf a, mel_vf b) { return _mm256_add_ps(a, b); }
+static inline mel_vf mel_vsub(mel_vf a, mel_vf b) { return _mm256_sub_ps(a, b); }
+static inline mel_vf mel_vmul(mel_vf a, mel_vf b) { return _mm256_mul_ps(a, b); }
+static inline mel_vf mel_vfma(mel_vf a, mel_vf b, mel_vf c) { return _mm256_fmadd_ps(a, b, c); }
+static inline mel_vf mel_vmax(mel_vf a, mel_vf b) { return _mm256_max_ps(a, b); }
+
+static inline float mel_vhsum(mel_vf v) {
+    __m128 s = _mm_add_ps(_mm256_castps256_ps128(v), _mm256_extractf128_ps(v, 1));
+    s = _mm_add_ps(s, _mm_movehl_ps(s, s));
+    s = _mm_add_ss(s, _mm_shuffle_ps(s, s, 1));
+    return _mm_cvtss_f32(s);
+}
+
+static inline float mel_vhmax(mel_vf v) {
+    __m128 m = _mm_max_ps(_mm256_castps256_ps128(v), _mm256_extractf128_ps(v, 1));
+    m = _mm_max_ps(m, _mm_movehl_ps(m, m));
+    m = _mm_max_ss(m, _mm_shuffle_ps(m, m, 1));
+    return _mm_cvtss_f32(m);
+}
+
+static inline mel_vf mel_vless(mel_vf a, mel_vf b) {
+    return _mm256_and_ps(_mm256_cmp_ps(a, b, _CMP_LT_OQ), _mm256_set1_ps(1.0f));
+}
+
+static inline mel_vf mel_vfrexp(mel_vf x, mel_vf& e) {
+    __m256i bits = _mm256_castps_si256(x);
+    e = _mm256_cvtepi32_ps(_mm256_sub_epi32(_mm256_srli_epi32(bits, 23), _mm256_set1_epi32(126)));
+    bits = _mm256_or_si256(_mm256_and_si256(bits, _mm256_set1_epi32(0x007fffff)), _mm256_set1_epi32(0x3f000000));
+    return _mm256_castsi256_ps(bits);
+}
+
+static inline void mel_vload2(const float* p, mel_vf& re, mel_vf& im) {
+    __m256 a = _mm256_loadu_ps(p);
+    __m256 b = _mm256_loadu_ps(p + 8);
+    // per 128-bit lane: (a0 a2 b0 b2 | a4 a6 b4 b6), then restore element order across lanes
+    re = _mm256_castpd_ps(_mm256_permute4x64_pd(_mm256_castps_pd(_mm256_shuffle_ps(a, b, 0x88)), 0xd8));
+    im = _mm256_castpd_ps(_mm256_permute4x64_pd(_mm256_castps_pd(_mm256_shuffle_ps(a, b, 0xdd)), 0xd8));
+}
+
+#elif defined(__SSE2__) || defined(_M_X64)
+#include <emmintrin.h>
+#define MEL_KERNELS_SSE 1
+#define MEL_KERNELS_NAME "SSE2"
+typedef __m128 mel_vf;
+static const int MEL_LANES = 4;
+
+static inline mel_vf mel_vload(const float* p) { return _mm_loadu_ps(p); }
+static inline void mel_vstore(float* p, mel_vf v) { _mm_storeu_ps(p, v); }
+static inline mel_vf mel_vset(float x) { return _mm_set1_ps(x); }
+static inline mel_vf mel_vadd(mel_vf a, mel_vf b) { return _mm_add_ps(a, b); }
+static inline mel_vf mel_vsub(mel_vf a, mel_vf b) { return _mm_sub_ps(a, b); }
+static inline mel_vf mel_vmul(mel_vf a, mel_vf b) { return _mm_mul_ps(a, b); }
+static inline mel_vf mel_vfma(mel_vf a, mel_vf b, mel_vf c) { return _mm_add_ps(_mm_mul_ps(a, b), c); }
+static inline mel_vf mel_vmax(mel_vf a, mel_vf b) { return _mm_max_ps(a, b); }
+
+static inline float mel_vhsum(mel_vf v) {
+    __m128 s = _mm_add_ps(v, _mm_movehl_ps(v, v));
+    s = _mm_add_ss(s, _mm_shuffle_ps(s, s, 1));
+    return _mm_cvtss_f32(s);
+}
+
+static inline float mel_vhmax(mel_vf v) {
+    __m128 m = _mm_max_ps(v, _mm_movehl_ps(v, v));
+    m = _mm_max_ss(m, _mm_shuffle_ps(m, m, 1));
+    return _mm_cvtss_f32(m);
+}
+
+static inline mel_vf mel_vless(mel_vf a, mel_vf b) {
+    return _mm_and_ps(_mm_cmplt_ps(a, b), _mm_set1_ps(1.0f));
+}
+
+static inline mel_vf mel_vfrexp(mel_vf x, mel_vf& e) {
+    __m128i bits = _mm_castps_si128(x);
+    e = _mm_cvtepi32_ps(_mm_sub_epi32(_mm_srli_epi32(bits, 23), _mm_set1_epi32(126)));
+    bits = _mm_or_si128(_mm_and_si128(bits, _mm_set1_epi32(0x007fffff)), _mm_set1_epi32(0x3f000000));
+    return _mm_castsi128_ps(bits);
+}
+
+static inline void mel_vload2(const float* p, mel_vf& re, mel_vf& im) {
+    __m128 a = _mm_loadu_ps(p);
+    __m128 b = _mm_loadu_ps(p + 4);
+    re = _mm_shuffle_ps(a, b, _MM_SHUFFLE(2, 0, 2, 0));
+    im = _mm_shuffle_ps(a, b, _MM_SHUFFLE(3, 1, 3, 1));
+}
+
+#else
+#define MEL_KERNELS_SCALAR 1
+#define MEL_KERNELS_NAME "scalar"
+typedef float mel_vf;
+static const int MEL_LANES = 1;
+
+static inline mel_vf mel_vload(const float* p) { return *p; }
+static inline void mel_vstore(float* p, mel_vf v) { *p = v; }
+static inline mel_vf mel_vset(float x) { return x; }
+static inline mel_vf mel_vadd(mel_vf a, mel_vf b) { return a + b; }
+static inline mel_vf mel_vsub(mel_vf a, mel_vf b) { return a - b; }
+static inline mel_vf mel_vmul(mel_vf a, mel_vf b) { return a * b; }
+static inline mel_vf mel_vfma(mel_vf a, mel_vf b, mel_vf c) { return a * b + c; }
+static inline mel_vf mel_vmax(mel_vf a, mel_vf b) { return a > b ? a : b; }
+static inline float mel_vhsum(mel_vf v) { return v; }
+static inline float mel_vhmax(mel_vf v) { return v; }
+static inline mel_vf mel_vless(mel_vf a, mel_vf b) { return a < b ? 1.0f : 0.0f; }
+
+static inline mel_vf mel_vfrexp(mel_vf x, mel_vf& e) {
+    int32_t bits;
+    std::memcpy(&bits, &x, sizeof(bits));
+    e = static_cast<float>((bits >> 23) - 126);
+    bits = (bits & 0x007fffff) | 0x3f000000;
+    float m;
+    std::memcpy(&m, &bits, sizeof(m));
+    return m;
+}
+
+static inline void mel_vload2(const float* p, mel_vf& re, mel_vf& im) {
+    re = p[0];
+    im = p[1];
+}
+#endif
+
+// log10 of positive normal floats (Cephes logf polynomial on the mantissa)
+static inline mel_vf mel_vlog10(mel_vf x) {
+    mel_vf e;
+    mel_vf m = mel_vfrexp(x, e);
+
+    // keep the mantissa in [sqrt(0.5), sqrt(2)) so the polynomial argument stays near 0
+    const mel_vf one = mel_vset(1.0f);
+    const mel_vf low = mel_vless(m, mel_vset(0.707106781186547524f));
+    e = mel_vsub(e, low);
+    x = mel_vsub(mel_vadd(m, mel_vmul(m, low)), one);
+
+    mel_vf y = mel_vset(7.0376836292e-2f);
+    y = mel_vfma(y, x, mel_vset(-1.1514610310e-1f));
+    y = mel_vfma(y, x, mel_vset(1.1676998740e-1f));
+    y = mel_vfma(y, x, mel_vset(-1.2420140846e-1f));
+    y = mel_vfma(y, x, mel_vset(1.4249322787e-1f));
+    y = mel_vfma(y, x, mel_vset(-1.6668057665e-1f));
+    y = mel_vfma(y, x, mel_vset(2.0000714765e-1f));
+    y = mel_vfma(y, x, mel_vset(-2.4999993993e-1f));
+    y = mel_vfma(y, x, mel_vset(3.3333331174e-1f));
+
+    const mel_vf z = mel_vmul(x, x);
+    y = mel_vmul(mel_vmul(y, x), z);
+    y = mel_vfma(e, mel_vset(-2.12194440e-4f), y);
+    y = mel_vfma(z, mel_vset(-0.5f), y);
+
+    // ln(x) = x + y + e * ln(2), ln(2) split in two parts for precision
+    mel_vf ln = mel_vadd(x, y);
+    ln = mel_vfma(e, mel_vset(0.693359375f), ln);
+    return mel_vmul(ln, mel_vset(0.434294481903251828f));
+}
+
+static inline float mel_log10(float x) {
+#if MEL_KERNELS_SCALAR
+    return mel_vlog10(x);
+#else
+    float lanes[MEL_LANES];
+    mel_vstore(lanes, mel_vlog10(mel_vset(x)));
+    return lanes[0];
+#endif
+}
+
+// out[i] = window[i] * samples[i], i < n
+static inline void mel_window(const float* samples, const float* window, float* out, const int n) {
+    int i = 0;
+    for (; i + MEL_LANES <= n; i += MEL_LANES) {
+        mel_vstore(out + i, mel_vmul(mel_vload(window + i), mel_vload(samples + i)));
+    }
+    for (; i < n; i++) {
+        out[i] = window[i] * samples[i];
+    }
+}
+
+// power[i] = scale * |bins[i]|^2 for interleaved complex bins, i < n
+static inline void mel_power(const float* bins, float* power, const int n, const float scale) {
+    const mel_vf vscale = mel_vset(scale);
+    int i = 0;
+    for (; i + MEL_LANES <= n; i += MEL_LANES) {
+        mel_vf re, im;
+        mel_vload2(bins + 2 * i, re, im);
+        mel_vstore(power + i, mel_vmul(mel_vfma(re, re, mel_vmul(im, im)), vscale));
+    }
+    for (; i < n; i++) {
+        power[i] = scale * (bins[2 * i + 0] * bins[2 * i + 0] + bins[2 * i + 1] * bins[2 * i + 1]);
+    }
+}
+
+// sum of a[i] * b[i], i < n, with float accumulators
+static inline float mel_dot(const float* a, const float* b, const int n) {
+    mel_vf acc0 = mel_vset(0.0f);
+    mel_vf acc1 = mel_vset(0.0f);
+    int i = 0;
+    for (; i + 2 * MEL_LANES <= n; i += 2 * MEL_LANES) {
+        acc0 = mel_vfma(mel_vload(a + i), mel_vload(b + i), acc0);
+        acc1 = mel_vfma(mel_vload(a + i + MEL_LANES), mel_vload(b + i + MEL_LANES), acc1);
+    }
+    for (; i + MEL_LANES <= n; i += MEL_LANES) {
+        acc0 = mel_vfma(mel_vload(a + i), mel_vload(b + i), acc0);
+    }
+
+    float sum = mel_vhsum(mel_vadd(acc0, acc1));
+    for (; i < n; i++) {
+        sum += a[i] * b[i];
+    }
+    return sum;
+}
+
+// x[i] = log10(max(x[i], floor)), i < n
+static inline void mel_log10_floor(float* x, const int n, const float floor) {
+    const mel_vf vfloor = mel_vset(floor);
+    int i = 0;
+    for (; i + MEL_LANES <= n; i += MEL_LANES) {
+        mel_vstore(x + i, mel_vlog10(mel_vmax(mel_vload(x + i), vfloor)));
+    }
+    for (; i < n; i++) {
+        x[i] = mel_log10(x[i] > floor ? x[i] : floor);
+    }
+}
+
+// max of x[i], i < n (n > 0)
+static inline float mel_max(const float* x, const int n) {
+    float max = x[0];
+    int i = 0;
+    if (n >= MEL_LANES) {
+        mel_vf vmax = mel_vload(x);
+        for (i = MEL_LANES; i + MEL_LANES <= n; i += MEL_LANES) {
+            vmax = mel_vmax(vmax, mel_vload(x + i));
+        }
+        max = mel_vhmax(vmax);
+    }
+    for (; i < n; i++) {
+        max = x[i] > max ? x[i] : max;
+    }
+    return max;
+}
+
+// x[i] = (max(x[i], min) + 4) / 4, i < n
+static inline void mel_clamp_normalize(float* x, const int n, const float min) {
+    const mel_vf vmin = mel_vset(min);
+    const mel_vf quarter = mel_vset(0.25f);
+    const mel_vf one = mel_vset(1.0f);
+    int i = 0;
+    for (; i + MEL_LANES <= n; i += MEL_LANES) {
+        mel_vstore(x + i, mel_vfma(mel_vmax(mel_vload(x + i), vmin), quarter, one));
+    }
+    for (; i < n; i++) {
+        x[i] = (x[i] > min ? x[i] : min) * 0.25f + 1.0f;
+    }
+}
+
+#endif // _MEL_KERNELS_H_
@@ -0,0 +1,81 @@
+#include <iostream>
+#include <cstring>
+#include <chrono>
+#include "tensorflow/lite/core/interpreter.h"
+#include "tensorflow/lite/kernels/register.h"
+#include "tensorflow/lite/model.h"
+
+#include "filters_vocab_en.h"
+#include "whisper.h"
+#include "wav_util.h"
+
+// Compares the vectorised mel kernels against the scalar reference in whisper.h.
+// Usage: mel_parity_test [audio.wav]; without a file a synthetic 20 second chirp with noise is used.
+// Exits with 1 if any mel value differs by more than the tolerance.
+
+static const float TOLERANCE = 1e-3f;
+static const int ITERATIONS = 20;
+
+static double run(whisper_mel_workspace& workspace, const std::vector<float>& samples,
+                  const whisper_filters& filters, whisper_mel& mel) {
+    const int n_samples_padded = WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
+    const int n_samples = std::min(static_cast<int>(samples.size()), n_samples_padded);
+
+    auto start = std::chrono::steady_clock::now();
+    for (int i = 0; i < ITERATIONS; i++) {
+        log_mel_spectrogram(samples.data(), n_samples, n_samples_padded, WHISPER_N_FFT, WHISPER_HOP_LENGTH,
+                            WHISPER_N_MEL, workspace, filters, mel);
+    }
+    auto end = std::chrono::steady_clock::now();
+    return std::chrono::duration<double, std::milli>(end - start).count() / ITERATIONS;
+}
+
+int main(int argc, char** argv) {
+    // Filters from the embedded English vocab: magic, n_mel, n_fft, data
+    const char* vocabData = reinterpret_cast<const char*>(filters_vocab_en) + sizeof(int);
+    whisper_filters filters;
+    std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
+    std::memcpy(&filters.n_fft, vocabData + sizeof(int), sizeof(filters.n_fft));
+    filters.data.resize(filters.n_mel * filters.n_fft);
+    std::memcpy(filters.data.data(), vocabData + 2 * sizeof(int), filters.data.size() * sizeof(float));
+    filters.compute_bounds();
+
+    std::vector<float> samples;
+    if (argc > 1) {
+        samples = readWAVFile(argv[1]);
+    } else {
+        samples.resize(20 * WHISPER_SAMPLE_RATE);
+        uint32_t seed = 1;
+        for (size_t i = 0; i < samples.size(); i++) {
+            const double t = static_cast<double>(i) / WHISPER_SAMPLE_RATE;
+            seed = seed * 1664525u + 1013904223u;
+            const float noise = (static_cast<float>(seed >> 8) / 16777216.0f - 0.5f) * 0.02f;
+            samples[i] = 0.5f * static_cast<float>(sin(2.0 * M_PI * (100.0 + 190.0 * t) * t)) + noise;
+        }
+    }
+
+    const int n_threads = std::max(1u, std::thread::hardware_concurrency());
+    whisper_mel_workspace workspace(WHISPER_N_FFT, n_threads);
+    whisper_mel reference_mel;
+    whisper_mel mel;
+
+    workspace.reference = true;
+    const double reference_ms = run(workspace, samples, filters, reference_mel);
+    workspace.reference = false;
+    const double kernel_ms = run(workspace, samples, filters, mel);
+
+    float max_diff = 0.0f;
+    for (size_t i = 0; i < mel.data.size(); i++) {
+        max_diff = std::max(max_diff, std::abs(mel.data[i] - reference_mel.data[i]));
+    }
+
+    std::cout << "Kernels: " << MEL_KERNELS_NAME << ", threads: " << n_threads << std::endl;
+    std::cout << "Reference: " << reference_ms << " ms, kernels: " << kernel_ms << " ms" << std::endl;
+    std::cout << "Max difference: " << max_diff << " (tolerance " << TOLERANCE << ")" << std::endl;
+
+    if (reference_mel.data.size() != mel.data.size() || max_diff > TOLERANCE) {
+        std::cerr << "Mel kernels do not match the reference" << std::endl;
+        return 1;
+    }
+    return 0;
+}
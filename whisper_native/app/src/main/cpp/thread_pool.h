@@ -0,0 +1,127 @@
+#ifndef _THREAD_POOL_H_
+#define _THREAD_POOL_H_
+
+#include <algorithm>
+#include <atomic>
+#include <condition_variable>
+#include <cstdint>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+// Fixed set of worker threads that live as long as the pool.
+// parallel_for hands out task indices to the workers and the calling thread, so a pool of size n
+// starts n - 1 threads once instead of n threads per call. One parallel_for runs at a time;
+// calls from several threads are serialised.
+class thread_pool {
+public:
+    explicit thread_pool(int n_threads) {
+        n_threads = std::max(1, n_threads);
+        for (int i = 1; i < n_threads; i++) {
+            workers.emplace_back([this] { worker_loop(); });
+        }
+    }
+
+    ~thread_pool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stop = true;
+        }
+        work_cv.notify_all();
+        for (std::thread& worker : workers) {
+            worker.join();
+        }
+    }
+
+    thread_pool(const thread_pool&) = delete;
+    thread_pool& operator=(const thread_pool&) = delete;
+
+    // Number of threads that run tasks, the caller included
+    int size() const {
+        return static_cast<int>(workers.size()) + 1;
+    }
+
+    // Run task(0) .. task(n_tasks - 1) and return when all have finished
+    void parallel_for(int n_tasks, const std::function<void(int)>& task) {
+        if (workers.empty() || n_tasks <= 1) {
+            for (int i = 0; i < n_tasks; i++) {
+                task(i);
+            }
+            return;
+        }
+
+        std::lock_guard<std::mutex> call_lock(call_mutex);
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            current = &task;
+            task_count = n_tasks;
+            next.store(0);
+            generation++;
+        }
+        work_cv.notify_all();
+
+        run_tasks(task, n_tasks);
+
+        // Workers that joined this batch may still be finishing their last task
+        std::unique_lock<std::mutex> lock(mutex);
+        done_cv.wait(lock, [this] { return active == 0; });
+        current = nullptr;
+    }
+
+private:
+    void run_tasks(const std::function<void(int)>& task, int n_tasks) {
+        for (int i = next.fetch_add(1); i < n_tasks; i = next.fetch_add(1)) {
+            task(i);
+        }
+    }
+
+    void worker_loop() {
+        uint64_t seen = 0;
+        for (;;) {
+            const std::function<void(int)>* task;
+            int n_tasks;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                work_cv.wait(lock, [&] { return stop || generation != seen; });
+                if (stop) {
+                    return;
+                }
+                seen = generation;
+
+                // The batch may already be over by the time this worker wakes up
+                task = current;
+                if (task == nullptr) {
+                    continue;
+                }
+                n_tasks = task_count;
+                active++;
+            }
+
+            run_tasks(*task, n_tasks);
+
+            {
+                std::lock_guard<std::mutex> lock(mutex);
+                active--;
+            }
+            done_cv.notify_one();
+        }
+    }
+
+    std::vector<std::thread> workers;
+
+    std::mutex call_mutex;
+    std::mutex mutex;
+    std::condition_variable work_cv;
+    std::condition_variable done_cv;
+
+    // Current batch, guarded by mutex; next is claimed lock-free while the batch runs
+    const std::function<void(int)>* current = nullptr;
+    int task_count = 0;
+    std::atomic<int> next{0};
+    uint64_t generation = 0;
+    int active = 0;
+    bool stop = false;
+};
+
+#endif // _THREAD_POOL_H_
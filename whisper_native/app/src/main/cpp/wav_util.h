@@ -1,18 +1,32 @@
+#ifndef _WAV_UTIL_H_
+#define _WAV_UTIL_H_
+
 #include <iostream>
-#include <fstream>
+#include <string>
 #include <vector>
+#include <algorithm>
+#include <climits>
 #include <cstdint>
 #include <cstring>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define WAV_FORMAT_PCM 1
+#define WAV_FORMAT_IEEE_FLOAT 3
+#define WAV_FORMAT_EXTENSIBLE 0xfffe
 
 #pragma pack(push, 1)  // Ensure that struct members are packed tightly
 
-// Define the WAV file header structure
-struct WAVHeader {
-    char riff_header[4];
-    uint32_t wav_size;
-    char wave_header[4];
-    char fmt_header[4];
-    uint32_t fmt_chunk_size;
+// RIFF chunk header: every chunk, including 'fmt ' and 'data', starts with one
+struct WAVChunkHeader {
+    char id[4];
+    uint32_t size;
+};
+
+// Body of the 'fmt ' chunk (WAVEFORMATEX without the extension)
+struct WAVFormat {
     uint16_t audio_format;
     uint16_t num_channels;
     uint32_t sample_rate;
@@ -23,38 +37,212 @@ struct WAVHeader {
 
 #pragma pack(pop)  // Restore default struct packing
 
-std::vector<float> readWAVFile(const char* filename) {
-    // Open the WAV file for binary reading
-    std::ifstream wav_file(filename, std::ios::binary);
-    
-    if (!wav_file.is_open()) {
-        std::cerr << "Failed to open file: " << filename << std::endl;
-        return std::vector<float>();
+// Memory-mapped WAV file.
+// The RIFF chunks are walked to find 'fmt ' and 'data', so files with LIST, fact or other chunks
+// before the samples are read correctly, and the sample count comes from the 'data' chunk size.
+// Samples are converted from the mapping straight into the caller's buffer; only the pages of the
+// requested range are touched, so a long recording can be read one window at a time.
+// Supports PCM16 and float32, mono or interleaved multi-channel (mixed down to mono).
+class WAVFile {
+public:
+    WAVFile() = default;
+    ~WAVFile() {
+        close();
     }
 
-    // Read the WAV header
-    WAVHeader wav_header;
-    wav_file.read(reinterpret_cast<char*>(&wav_header), sizeof(wav_header));
+    WAVFile(const WAVFile&) = delete;
+    WAVFile& operator=(const WAVFile&) = delete;
 
-    // Check if it's a valid WAV file
-    if (strncmp(wav_header.riff_header, "RIFF", 4) != 0 ||
-        strncmp(wav_header.wave_header, "WAVE", 4) != 0 ||
-        strncmp(wav_header.fmt_header, "fmt ", 4) != 0) {
-        std::cerr << "Not a valid WAV file: " << filename << std::endl;
-        return std::vector<float>();
+    bool open(const char* filename) {
+        close();
+
+        int fd = ::open(filename, O_RDONLY);
+        if (fd < 0) {
+            std::cerr << "Failed to open file: " << filename << std::endl;
+            return false;
+        }
+
+        struct stat st{};
+        if (fstat(fd, &st) != 0 || st.st_size < 12) {
+            std::cerr << "Not a valid WAV file: " << filename << std::endl;
+            ::close(fd);
+            return false;
+        }
+
+        m_size = static_cast<size_t>(st.st_size);
+        void* data = mmap(nullptr, m_size, PROT_READ, MAP_PRIVATE, fd, 0);
+        ::close(fd);  // the mapping stays valid after the descriptor is closed
+        if (data == MAP_FAILED) {
+            std::cerr << "Failed to map file: " << filename << std::endl;
+            m_size = 0;
+            return false;
+        }
+        m_data = static_cast<const uint8_t*>(data);
+
+        if (!parse()) {
+            std::cerr << "Not a valid WAV file: " << filename << std::endl;
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    void close() {
+        if (m_data != nullptr) {
+            munmap(const_cast<uint8_t*>(m_data), m_size);
+        }
+        m_data = nullptr;
+        m_size = 0;
+        m_samples = nullptr;
+        m_num_samples = 0;
+    }
+
+    const WAVFormat& format() const {
+        return m_format;
+    }
+
+    // Number of sample frames (samples per channel)
+    int numSamples() const {
+        return m_num_samples;
+    }
+
+    // Convert frames [start, start + count) into dst; returns the number of frames written,
+    // which is less than count at the end of the file
+    int read(int start, int count, float* dst) const {
+        if (m_samples == nullptr || start < 0 || count <= 0 || start >= m_num_samples) {
+            return 0;
+        }
+        count = std::min(count, m_num_samples - start);
+
+        const int channels = m_format.num_channels;
+        const uint8_t* src = m_samples + static_cast<size_t>(start) * m_format.block_align;
+
+        if (m_pcm16) {
+            const float scale = 1.0f / (static_cast<float>(INT16_MAX) * channels);
+            for (int i = 0; i < count; i++) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    int16_t sample;
+                    std::memcpy(&sample, src + 2 * c, sizeof(sample));  // data may be unaligned
+                    sum += sample;
+                }
+                dst[i] = static_cast<float>(sum) * scale;
+                src += m_format.block_align;
+            }
+        } else if (channels == 1) {
+            std::memcpy(dst, src, static_cast<size_t>(count) * sizeof(float));
+        } else {
+            const float scale = 1.0f / channels;
+            for (int i = 0; i < count; i++) {
+                float sum = 0.0f;
+                for (int c = 0; c < channels; c++) {
+                    float sample;
+                    std::memcpy(&sample, src + 4 * c, sizeof(sample));
+                    sum += sample;
+                }
+                dst[i] = sum * scale;
+                src += m_format.block_align;
+            }
+        }
+        return count;
+    }
+
+private:
+    bool parse() {
+        if (std::memcmp(m_data, "RIFF", 4) != 0 || std::memcmp(m_data + 8, "WAVE", 4) != 0) {
+            return false;
+        }
+
+        bool has_format = false;
+        size_t pos = 12;
+        while (pos + sizeof(WAVChunkHeader) <= m_size) {
+            WAVChunkHeader chunk;
+            std::memcpy(&chunk, m_data + pos, sizeof(chunk));
+            pos += sizeof(chunk);
+            const size_t available = m_size - pos;
+
+            if (std::memcmp(chunk.id, "fmt ", 4) == 0) {
+                if (chunk.size < sizeof(WAVFormat) || chunk.size > available) {
+                    return false;
+                }
+                std::memcpy(&m_format, m_data + pos, sizeof(m_format));
+
+                // WAVE_FORMAT_EXTENSIBLE keeps the real format in the first 2 bytes of the sub-format GUID
+                if (m_format.audio_format == WAV_FORMAT_EXTENSIBLE && chunk.size >= sizeof(WAVFormat) + 10) {
+                    std::memcpy(&m_format.audio_format, m_data + pos + sizeof(WAVFormat) + 8, sizeof(uint16_t));
+                }
+                has_format = true;
+            } else if (std::memcmp(chunk.id, "data", 4) == 0) {
+                if (!has_format || !checkFormat()) {
+                    return false;
+                }
+
+                // Recorders that could not seek back leave the size at 0 or 0xffffffff: use what is there
+                size_t data_size = chunk.size;
+                if (data_size == 0 || data_size > available) {
+                    data_size = available;
+                }
+                m_samples = m_data + pos;
+                m_num_samples = static_cast<int>(std::min<size_t>(data_size / m_format.block_align, INT32_MAX));
+                return true;
+            }
+
+            // LIST, fact, cue, ... are skipped; chunk bodies are padded to an even size
+            pos += chunk.size + (chunk.size & 1);
+        }
+        return false;
+    }
+
+    bool checkFormat() {
+        if (m_format.num_channels == 0) {
+            return false;
+        }
+
+        if (m_format.audio_format == WAV_FORMAT_PCM && m_format.bits_per_sample == 16) {
+            m_pcm16 = true;
+        } else if (m_format.audio_format == WAV_FORMAT_IEEE_FLOAT && m_format.bits_per_sample == 32) {
+            m_pcm16 = false;
+        } else {
+            std::cerr << "Unsupported WAV format " << m_format.audio_format << " with "
+                      << m_format.bits_per_sample << " bits per sample" << std::endl;
+            return false;
+        }
+        return m_format.block_align >= m_format.num_channels * (m_format.bits_per_sample / 8);
+    }
+
+    const uint8_t* m_data = nullptr;
+    size_t m_size = 0;
+    WAVFormat m_format{};
+    bool m_pcm16 = true;
+    const uint8_t* m_samples = nullptr;
+    int m_num_samples = 0;
+};
+
+// Read frames [start, start + count) of a WAV file into dst; returns the number read, -1 on error
+int readWAVFile(const char* filename, int start, int count, float* dst) {
+    WAVFile wav;
+    if (!wav.open(filename)) {
+        return -1;
     }
+    return wav.read(start, count, dst);
+}
 
+std::vector<float> readWAVFile(const char* filename) {
+    WAVFile wav;
+    if (!wav.open(filename)) {
+        return std::vector<float>();
+    }
 
-   // Determine the audio format
+    // Determine the audio format
+    const WAVFormat& format = wav.format();
     std::string audio_format_str;
-    switch (wav_header.audio_format) {
-        case 1:
+    switch (format.audio_format) {
+        case WAV_FORMAT_PCM:
             audio_format_str = "PCM";
             break;
-        case 3:
+        case WAV_FORMAT_IEEE_FLOAT:
             audio_format_str = "IEEE Float";
             break;
-        // Add more cases for other audio formats as needed
         default:
             audio_format_str = "Unknown";
             break;
@@ -62,32 +250,13 @@ std::vector<float> readWAVFile(const char* filename) {
 
     // Print information from the header
     std::cout << "Audio Format: " << audio_format_str << std::endl;
-    std::cout << "Num Channels: " << wav_header.num_channels << std::endl;
-    std::cout << "Sample Rate: " << wav_header.sample_rate << std::endl;
-    std::cout << "Bits Per Sample: " << wav_header.bits_per_sample << std::endl;
-
-    // Calculate the number of samples
-    uint32_t num_samples = wav_header.wav_size / wav_header.block_align;
-
-	// convert pcm 16 to float
-	std::vector<float> float_samples(num_samples);
-	if (wav_header.audio_format == 1) {
-		// Read audio samples into a vector of int16_t
-		std::vector<int16_t> pcm16_samples(num_samples);
-		wav_file.read(reinterpret_cast<char*>(pcm16_samples.data()), wav_header.wav_size);
-
-		// Convert int16_t samples to float samples
-		for (uint32_t i = 0; i < num_samples; i++) {
-			float_samples[i] = static_cast<float>(pcm16_samples[i]) / static_cast<float>(INT16_MAX);
-		}
-	} else {
-		// Read audio samples into a vector of float
-		wav_file.read(reinterpret_cast<char*>(float_samples.data()), wav_header.wav_size);
-	}
-
-    // Close the file
-    wav_file.close();
-
-    // Return the float_samples vector
+    std::cout << "Num Channels: " << format.num_channels << std::endl;
+    std::cout << "Sample Rate: " << format.sample_rate << std::endl;
+    std::cout << "Bits Per Sample: " << format.bits_per_sample << std::endl;
+
+    std::vector<float> float_samples(wav.numSamples());
+    wav.read(0, wav.numSamples(), float_samples.data());
     return float_samples;
-}
\ No newline at end of file
+}
+
+#endif // _WAV_UTIL_H_
\ No newline at end of file
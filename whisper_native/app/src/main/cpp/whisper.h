@@ -6,9 +6,13 @@
 #include <vector>
 #include <thread>
 #include <cmath>
-#include <map>
 #include <string>
 #include <memory>
+#include <algorithm>
+
+#include "fft_plan.h"
+#include "mel_kernels.h"
+#include "thread_pool.h"
 
 // Define constants
 #define WHISPER_SAMPLE_RATE 16000
@@ -22,15 +26,19 @@
 struct whisper_vocab;
 struct whisper_filters;
 struct whisper_mel;
-const char* whisper_token_to_str(int token);
-bool log_mel_spectrogram(const float* samples, const int n_samples, const int sample_rate,
+struct whisper_mel_workspace;
+const char* whisper_token_to_str(const whisper_vocab& vocab, int token);
+bool log_mel_spectrogram(const float* samples, const int n_samples, const int n_samples_padded,
                         const int fft_size, const int fft_step, const int n_mel,
-                        const int n_threads, const whisper_filters& filters, whisper_mel& mel);
+                        whisper_mel_workspace& workspace, const whisper_filters& filters, whisper_mel& mel);
 
 // whisper_vocab structure
 struct whisper_vocab {
 
-    std::map<int, std::string> id_to_token;
+    // Flat id-indexed store: token i starts at token_bytes[token_offsets[i]] and is
+    // null-terminated, so it can be handed out as a C string without a lookup structure
+    std::vector<int> token_offsets;
+    std::vector<char> token_bytes;
 
     int n_vocab_additional = 51864; 
 
@@ -44,9 +52,38 @@ struct whisper_vocab {
     static const int token_translwordate = 50358;
     static const int token_transcribe = 50359;
 
+    int n_tokens() const {
+        return token_offsets.empty() ? 0 : static_cast<int>(token_offsets.size()) - 1;
+    }
+
+    // Reserve space for n tokens with a total of n_bytes bytes (excluding terminators)
+    void reserve(int n, size_t n_bytes) {
+        token_offsets.reserve(n + 1);
+        token_bytes.reserve(n_bytes + n);
+    }
+
+    // Append the next token id
+    void add_token(const char* data, int len) {
+        if (token_offsets.empty()) {
+            token_offsets.push_back(0);
+        }
+        token_bytes.insert(token_bytes.end(), data, data + len);
+        token_bytes.push_back('\0');
+        token_offsets.push_back(static_cast<int>(token_bytes.size()));
+    }
+
+    const char* token_str(int id) const {
+        return &token_bytes[token_offsets[id]];
+    }
+
+    int token_len(int id) const {
+        return token_offsets[id + 1] - token_offsets[id] - 1;
+    }
+
     // Reset the whisper_vocab structure
     void reset() {
-        id_to_token.clear();
+        token_offsets.clear();
+        token_bytes.clear();
         n_vocab_additional = 51864;
         token_eot = 50256;
         token_sot = 50257;
@@ -57,32 +94,43 @@ struct whisper_vocab {
     }
 };
 
-// Global whisper_vocab instance
-whisper_vocab g_vocab;
-
 // whisper_tflite structure
 struct whisper_tflite {
-    char* buffer = nullptr;
-    long size = 0;
     std::unique_ptr<tflite::FlatBufferModel> model;
     tflite::ops::builtin::BuiltinOpResolver resolver;
     std::unique_ptr<tflite::Interpreter> interpreter;
-    float* input;
-
-    bool is_whisper_tflite_initialized = false;
+    float* input = nullptr;
 };
 
-whisper_tflite g_whisper_tflite;
-
 // whisper_filters structure
 struct whisper_filters {
     int n_mel;
     int n_fft;
 
     std::vector<float> data;
-};
 
-whisper_filters filters;
+    // First and last + 1 non-zero bin of each filter; call compute_bounds() once data is loaded
+    std::vector<int> bounds;
+
+    // Each filter is a triangle covering a few bins; record where it is non-zero so the mel
+    // projection skips the zeros around it
+    void compute_bounds() {
+        bounds.resize(2 * n_mel);
+        for (int j = 0; j < n_mel; j++) {
+            const float* filter = data.data() + j * n_fft;
+            int lo = 0;
+            int hi = n_fft;
+            while (lo < hi && filter[lo] == 0.0f) {
+                lo++;
+            }
+            while (hi > lo && filter[hi - 1] == 0.0f) {
+                hi--;
+            }
+            bounds[2 * j + 0] = lo;
+            bounds[2 * j + 1] = hi;
+        }
+    }
+};
 
 // whisper_mel structure
 struct whisper_mel {
@@ -92,8 +140,6 @@ struct whisper_mel {
     std::vector<float> data;
 };
 
-whisper_mel mel;
-
 // Print a vector of float values
 void print(const std::vector<float>& a) {
     std::cout << "The vector elements are: ";
@@ -103,162 +149,197 @@ void print(const std::vector<float>& a) {
 }
 
 // Convert a token to a string
-const char* whisper_token_to_str(int token) {
-    return g_vocab.id_to_token.at(token).c_str();
+const char* whisper_token_to_str(const whisper_vocab& vocab, int token) {
+    return vocab.token_str(token);
 }
 
-// Naive Discrete Fourier Transform
-void dft(const std::vector<float>& in, std::vector<float>& out) {
-    int N = in.size();
-    out.resize(N * 2);
-
-    for (int k = 0; k < N; k++) {
-        float re = 0;
-        float im = 0;
-
-        for (int n = 0; n < N; n++) {
-            float angle = 2 * M_PI * k * n / N;
-            re += in[n] * cos(angle);
-            im -= in[n] * sin(angle);
+// Append the text of tokens[0..n_tokens) to text, stopping at EOT and skipping special tokens
+void whisper_decode_tokens(const whisper_vocab& vocab, const int* tokens, const int n_tokens, std::string& text) {
+    for (int i = 0; i < n_tokens; i++) {
+        if (tokens[i] == vocab.token_eot) {
+            break;
         }
 
-        out[k * 2 + 0] = re;
-        out[k * 2 + 1] = im;
+        if (tokens[i] < vocab.token_eot) {
+            text.append(vocab.token_str(tokens[i]), vocab.token_len(tokens[i]));
+        }
     }
 }
 
-// Cooley-Tukey FFT
-void fft(const std::vector<float>& in, std::vector<float>& out) {
-    out.resize(in.size() * 2);
-
-    int N = in.size();
+// Per-engine state for log_mel_spectrogram that only depends on the FFT size and thread count:
+// the FFT plan, the Hann window, the worker pool and one scratch block per worker.
+// Built once and reused, so computing a spectrogram starts no threads and allocates nothing
+// beyond mel.data. Not thread-safe: one workspace per engine.
+struct whisper_mel_workspace {
+    whisper_mel_workspace(const int fft_size, const int n_threads)
+        : fft_size(fft_size), fft(fft_size), pool(n_threads) {
+        hann.resize(fft_size);
+        for (int i = 0; i < fft_size; i++) {
+            hann[i] = 0.5 * (1.0 - cos((2.0 * M_PI * i) / fft_size));
+        }
 
-    if (N == 1) {
-        out[0] = in[0];
-        out[1] = 0;
-        return;
+        // windowed frame (reused for the power spectrum), half-size complex FFT (reused for the
+        // mel bands), interleaved bins
+        scratch.resize(pool.size());
+        for (std::vector<float>& block : scratch) {
+            block.resize(fft_size + fft_size + 2 * fft.bin_count());
+        }
     }
 
-    if (N % 2 == 1) {
-        dft(in, out);
-        return;
-    }
+    const int fft_size;
+    const real_fft_plan fft;
+    std::vector<float> hann;
+    thread_pool pool;
+    std::vector<std::vector<float>> scratch;
 
-    std::vector<float> even;
-    std::vector<float> odd;
+    // Use the original scalar code (double accumulation, libm log10) instead of the
+    // vectorised kernels in mel_kernels.h; kept as the reference for parity checks
+    bool reference = false;
+};
 
-    for (int i = 0; i < N; i++) {
-        if (i % 2 == 0) {
-            even.push_back(in[i]);
+// Scalar reference for one frame: mel.data[j * n_len + i] = log10 of mel band j
+static void log_mel_frame_reference(const float* samples, const int n_samples, const int offset,
+                                    const int fft_size, whisper_mel_workspace& workspace, float* scratch,
+                                    const whisper_filters& filters, whisper_mel& mel, const int i) {
+    const int n_fft = 1 + fft_size / 2;
+    float* fft_in = scratch;
+    float* fft_half = fft_in + fft_size;
+    float* fft_out = fft_half + fft_size;
+
+    // apply Hanning window
+    for (int j = 0; j < fft_size; j++) {
+        if (offset + j < n_samples) {
+            fft_in[j] = workspace.hann[j] * samples[offset + j];
         } else {
-            odd.push_back(in[i]);
+            fft_in[j] = 0.0;
         }
     }
 
-    std::vector<float> even_fft;
-    std::vector<float> odd_fft;
+    // FFT -> mag^2
+    workspace.fft.forward(fft_in, fft_half, fft_out);
 
-    fft(even, even_fft);
-    fft(odd, odd_fft);
+    for (int j = 0; j < n_fft; j++) {
+        fft_out[j] = (fft_out[2 * j + 0] * fft_out[2 * j + 0] + fft_out[2 * j + 1] * fft_out[2 * j + 1]);
+    }
+
+    // fold the mirror half back: for real input |X[fft_size - j]|^2 == |X[j]|^2
+    for (int j = 1; j < fft_size / 2; j++) {
+        fft_out[j] *= 2.0f;
+    }
+
+    // mel spectrogram
+    for (int j = 0; j < mel.n_mel; j++) {
+        double sum = 0.0;
 
-    for (int k = 0; k < N / 2; k++) {
-        float theta = 2 * M_PI * k / N;
+        for (int k = 0; k < n_fft; k++) {
+            sum += fft_out[k] * filters.data[j * n_fft + k];
+        }
+
+        if (sum < 1e-10) {
+            sum = 1e-10;
+        }
 
-        float re = cos(theta);
-        float im = -sin(theta);
+        sum = log10(sum);
 
-        float re_odd = odd_fft[2 * k + 0];
-        float im_odd = odd_fft[2 * k + 1];
+        mel.data[j * mel.n_len + i] = sum;
+    }
+}
 
-        out[2 * k + 0] = even_fft[2 * k + 0] + re * re_odd - im * im_odd;
-        out[2 * k + 1] = even_fft[2 * k + 1] + re * im_odd + im * re_odd;
+// Vectorised frame, same result as log_mel_frame_reference up to float rounding
+static void log_mel_frame(const float* samples, const int n_samples, const int offset,
+                          const int fft_size, whisper_mel_workspace& workspace, float* scratch,
+                          const whisper_filters& filters, whisper_mel& mel, const int i) {
+    const int n_fft = 1 + fft_size / 2;
+    float* fft_in = scratch;
+    float* fft_half = fft_in + fft_size;
+    float* fft_out = fft_half + fft_size;
+
+    // apply Hanning window
+    const int n_valid = std::max(0, std::min(fft_size, n_samples - offset));
+    mel_window(samples + offset, workspace.hann.data(), fft_in, n_valid);
+    std::fill(fft_in + n_valid, fft_in + fft_size, 0.0f);
+
+    workspace.fft.forward(fft_in, fft_half, fft_out);
+
+    // mag^2 with the mirror half folded back; DC and Nyquist have no mirror
+    float* power = fft_in;
+    mel_power(fft_out, power, n_fft, 2.0f);
+    power[0] *= 0.5f;
+    power[fft_size / 2] *= 0.5f;
+
+    // mel bands, only over each filter's non-zero bins
+    float* bands = fft_half;
+    for (int j = 0; j < mel.n_mel; j++) {
+        const int lo = filters.bounds[2 * j + 0];
+        const int hi = filters.bounds[2 * j + 1];
+        bands[j] = mel_dot(power + lo, filters.data.data() + j * n_fft + lo, hi - lo);
+    }
+    mel_log10_floor(bands, mel.n_mel, 1e-10f);
 
-        out[2 * (k + N / 2) + 0] = even_fft[2 * k + 0] - re * re_odd + im * im_odd;
-        out[2 * (k + N / 2) + 1] = even_fft[2 * k + 1] - re * im_odd - im * re_odd;
+    for (int j = 0; j < mel.n_mel; j++) {
+        mel.data[j * mel.n_len + i] = bands[j];
     }
 }
 
 // Log mel spectrogram computation
-bool log_mel_spectrogram(const float* samples, const int n_samples, const int sample_rate,
+// Only the first n_samples of samples are read; the input is treated as zero-padded to n_samples_padded.
+// Frames that lie entirely in the padded tail are all zeros and get the constant floor value.
+// Frames are split into one contiguous block per worker, so each worker walks the samples and
+// writes the mel rows sequentially.
+bool log_mel_spectrogram(const float* samples, const int n_samples, const int n_samples_padded,
                         const int fft_size, const int fft_step, const int n_mel,
-                        const int n_threads, const whisper_filters& filters, whisper_mel& mel) {
-    std::vector<float> hann;
-    hann.resize(fft_size);
-
-    for (int i = 0; i < fft_size; i++) {
-        hann[i] = 0.5 * (1.0 - cos((2.0 * M_PI * i) / fft_size));
+                        whisper_mel_workspace& workspace, const whisper_filters& filters, whisper_mel& mel) {
+    if (workspace.fft_size != fft_size) {
+        std::cerr << "Mel workspace was built for FFT size " << workspace.fft_size << ", not " << fft_size << std::endl;
+        return false;
+    }
+    if (n_mel > fft_size) {
+        std::cerr << "Too many mel bands for FFT size " << fft_size << ": " << n_mel << std::endl;
+        return false;
+    }
+    if (filters.bounds.size() != static_cast<size_t>(2 * n_mel)) {
+        std::cerr << "Mel filter bounds were not computed for " << n_mel << " bands" << std::endl;
+        return false;
     }
 
     mel.n_mel = n_mel;
-    mel.n_len = (n_samples) / fft_step;
+    mel.n_len = (n_samples_padded) / fft_step;
     mel.data.resize(mel.n_mel * mel.n_len);
 
+    // frames starting at or past n_samples see only zeros: log10(1e-10)
+    const int n_frames = std::min(mel.n_len, (n_samples + fft_step - 1) / fft_step);
+    for (int j = 0; j < mel.n_mel; j++) {
+        std::fill(mel.data.begin() + j * mel.n_len + n_frames, mel.data.begin() + (j + 1) * mel.n_len, -10.0f);
+    }
+
     // std::cout << "n_mel: " << mel.n_mel << std::endl;
     // std::cout << "n_len: " << mel.n_len << std::endl;
 
-    const int n_fft = 1 + fft_size / 2;
-
-    std::vector<std::thread> workers(n_threads);
-    for (int iw = 0; iw < n_threads; ++iw) {
-        workers[iw] = std::thread([&](int ith) {
-            std::vector<float> fft_in;
-            fft_in.resize(fft_size);
-            for (int i = 0; i < fft_size; i++) {
-                fft_in[i] = 0.0;
-            }
-
-            std::vector<float> fft_out;
-            fft_out.resize(2 * fft_size);
-
-            for (int i = ith; i < mel.n_len; i += n_threads) {
-                const int offset = i * fft_step;
-
-                // apply Hanning window
-                for (int j = 0; j < fft_size; j++) {
-                    if (offset + j < n_samples) {
-                        fft_in[j] = hann[j] * samples[offset + j];
-                    } else {
-                        fft_in[j] = 0.0;
-                    }
-                }
-
-                // FFT -> mag^2
-                fft(fft_in, fft_out);
+    const int n_blocks = std::min(workspace.pool.size(), std::max(1, n_frames));
+    const bool reference = workspace.reference;
 
-                for (int j = 0; j < fft_size; j++) {
-                    fft_out[j] = (fft_out[2 * j + 0] * fft_out[2 * j + 0] + fft_out[2 * j + 1] * fft_out[2 * j + 1]);
-                }
+    workspace.pool.parallel_for(n_blocks, [&](int block) {
+        float* scratch = workspace.scratch[block].data();
 
-                for (int j = 1; j < fft_size / 2; j++) {
-                    fft_out[j] += fft_out[fft_size - j];
-                }
+        const int first = static_cast<int>(static_cast<long long>(n_frames) * block / n_blocks);
+        const int last = static_cast<int>(static_cast<long long>(n_frames) * (block + 1) / n_blocks);
 
-                // mel spectrogram
-                for (int j = 0; j < mel.n_mel; j++) {
-                    double sum = 0.0;
-
-                    for (int k = 0; k < n_fft; k++) {
-                        sum += fft_out[k] * filters.data[j * n_fft + k];
-                    }
-
-                    if (sum < 1e-10) {
-                        sum = 1e-10;
-                    }
-
-                    sum = log10(sum);
-
-                    mel.data[j * mel.n_len + i] = sum;
-                }
+        for (int i = first; i < last; i++) {
+            if (reference) {
+                log_mel_frame_reference(samples, n_samples, i * fft_step, fft_size, workspace, scratch, filters, mel, i);
+            } else {
+                log_mel_frame(samples, n_samples, i * fft_step, fft_size, workspace, scratch, filters, mel, i);
             }
-        }, iw);
-    }
+        }
+    });
 
-    // Wait for all threads to finish
-    for (int iw = 0; iw < n_threads; ++iw) {
-        workers[iw].join();
+    // clamping and normalization
+    if (!reference) {
+        const float mmax = mel_max(mel.data.data(), mel.n_mel * mel.n_len);
+        mel_clamp_normalize(mel.data.data(), mel.n_mel * mel.n_len, mmax - 8.0f);
+        return true;
     }
 
-    // clamping and normalization
     double mmax = -1e20;
     for (int i = 0; i < mel.n_mel * mel.n_len; i++) {
         if (mel.data[i] > mmax) {
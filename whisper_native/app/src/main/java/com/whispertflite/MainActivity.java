@@ -205,10 +205,6 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
 
-            @Override
-            public void onDataReceived(float[] samples) {
-//                mWhisper.writeBuffer(samples);
-            }
         });
 
         // Audio playback functionality
@@ -241,6 +237,7 @@ public class MainActivity extends AppCompatActivity {
         mWhisper = new Whisper(this);
         mWhisper.setConvertToSimplifiedChinese(true);
         mWhisper.loadModel(modelFile, vocabFile, isMultilingualModel);
+//        mRecorder.setAudioQueue(mWhisper.getAudioQueue()); // live mic feed transcription
         mWhisper.setListener(new Whisper.WhisperListener() {
             @Override
             public void onUpdateReceived(String message) {
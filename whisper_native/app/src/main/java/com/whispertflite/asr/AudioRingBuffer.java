@@ -0,0 +1,204 @@
+package com.whispertflite.asr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Single-producer / single-consumer ring of float PCM samples between the recorder thread and the
+// transcription thread.
+// Positions are two ever-increasing sample counters: the producer publishes by advancing the
+// write counter after storing samples, the consumer frees space by advancing the read counter.
+// Neither side takes a lock and the producer never waits: samples that do not fit are dropped and
+// counted. Every sample is stored twice, at i and i + capacity, so any run of up to capacity
+// unread samples is contiguous in array() and can be handed to the engine as (array, offset,
+// length) without copying. The storage is allocated once; writing and reading allocate nothing.
+public class AudioRingBuffer {
+    private final float[] mBuffer;
+    private final int mCapacity;
+    private final int mMask;
+
+    private final AtomicLong mWriteSeq = new AtomicLong();
+    private final AtomicLong mReadSeq = new AtomicLong();
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+
+    // Consumer parked in awaitAvailable, woken by the producer after each write, and producer
+    // parked in awaitAvailableAtMost, woken by the consumer after each consume
+    private volatile Thread mWaiter;
+    private volatile Thread mProducerWaiter;
+
+    // Set by wakeConsumer, cleared when awaitAvailable returns
+    private volatile boolean mWakeup = false;
+
+    // capacity is rounded up to a power of two
+    public AudioRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 29)) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = mCapacity - 1;
+        mBuffer = new float[2 * mCapacity];
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /////////////////////////////////// Producer ///////////////////////////////////
+
+    // Append little-endian PCM16 bytes data[offset .. offset + length) as floats.
+    // Returns the number of samples written; the rest did not fit and is dropped.
+    public int writePcm16(byte[] data, int offset, int length) {
+        int nSamples = length / 2;
+        long writeSeq = mWriteSeq.get();
+        int count = reserve(writeSeq, nSamples);
+
+        int pos = (int) (writeSeq & mMask);
+        for (int i = 0; i < count; i++) {
+            int lo = data[offset + 2 * i] & 0xff;
+            int hi = data[offset + 2 * i + 1];
+            float sample = (short) (hi << 8 | lo) / 32768.0f;
+            mBuffer[pos] = sample;
+            mBuffer[pos + mCapacity] = sample;
+            pos = (pos + 1) & mMask;
+        }
+        publish(writeSeq + count);
+        return count;
+    }
+
+    // Append samples[offset .. offset + length); returns the number written
+    public int write(float[] samples, int offset, int length) {
+        long writeSeq = mWriteSeq.get();
+        int count = reserve(writeSeq, length);
+
+        int pos = (int) (writeSeq & mMask);
+        int first = Math.min(count, mCapacity - pos);
+        System.arraycopy(samples, offset, mBuffer, pos, first);
+        System.arraycopy(samples, offset, mBuffer, pos + mCapacity, first);
+        System.arraycopy(samples, offset + first, mBuffer, 0, count - first);
+        System.arraycopy(samples, offset + first, mBuffer, mCapacity, count - first);
+        publish(writeSeq + count);
+        return count;
+    }
+
+    // Wait until at most maxSamples are unread, the thread is interrupted or timeoutNanos have
+    // passed, for producers that prefer to wait over dropping. Returns the number unread.
+    public int awaitAvailableAtMost(int maxSamples, long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        mProducerWaiter = Thread.currentThread();
+        try {
+            int available;
+            while ((available = available()) > maxSamples && !Thread.currentThread().isInterrupted()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return available;
+        } finally {
+            mProducerWaiter = null;
+        }
+    }
+
+    // Total number of samples written so far, i.e. the stream position of the next sample
+    public long writePosition() {
+        return mWriteSeq.get();
+    }
+
+    // Make the consumer's current or next awaitAvailable return early, e.g. after marking the end
+    // of the stream
+    public void wakeConsumer() {
+        mWakeup = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // Samples dropped because the consumer fell a full buffer behind
+    public long getDroppedSamples() {
+        return mDroppedSamples.get();
+    }
+
+    private int reserve(long writeSeq, int nSamples) {
+        int free = mCapacity - (int) (writeSeq - mReadSeq.get());
+        int count = Math.min(nSamples, free);
+        if (count < nSamples) {
+            mDroppedSamples.addAndGet(nSamples - count);
+        }
+        return count;
+    }
+
+    private void publish(long writeSeq) {
+        // Volatile store: the samples above are visible before the new count, and the store is
+        // ordered before the read of mWaiter so a consumer that just parked is always woken
+        mWriteSeq.set(writeSeq);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /////////////////////////////////// Consumer ///////////////////////////////////
+
+    // Number of samples written and not yet consumed
+    public int available() {
+        return (int) (mWriteSeq.get() - mReadSeq.get());
+    }
+
+    // Wait until at least minSamples are available, the thread is interrupted or the producer
+    // calls wakeConsumer. Returns the number available.
+    public int awaitAvailable(int minSamples) {
+        minSamples = Math.min(minSamples, mCapacity);
+        mWaiter = Thread.currentThread();
+        try {
+            int available;
+            while ((available = available()) < minSamples && !Thread.currentThread().isInterrupted() && !mWakeup) {
+                LockSupport.park(this);
+            }
+            return available;
+        } finally {
+            mWaiter = null;
+            mWakeup = false;
+        }
+    }
+
+    // Backing array of the view: the unread samples are array()[readOffset() .. readOffset() + available())
+    // and stay valid until they are consumed
+    public float[] array() {
+        return mBuffer;
+    }
+
+    public int readOffset() {
+        return (int) (mReadSeq.get() & mMask);
+    }
+
+    // Total number of samples consumed so far, i.e. the stream position of readOffset()
+    public long readPosition() {
+        return mReadSeq.get();
+    }
+
+    // Release the first nSamples unread samples to the producer
+    public void consume(int nSamples) {
+        if (nSamples < 0 || nSamples > available()) {
+            throw new IllegalArgumentException("Cannot consume " + nSamples + " of " + available() + " samples");
+        }
+        advanceRead(mReadSeq.get() + nSamples);
+    }
+
+    // Drop everything unread, e.g. when a new recording starts
+    public void skipAll() {
+        advanceRead(mWriteSeq.get());
+    }
+
+    private void advanceRead(long readSeq) {
+        mReadSeq.set(readSeq);
+        Thread waiter = mProducerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
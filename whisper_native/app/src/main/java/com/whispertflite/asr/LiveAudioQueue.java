@@ -0,0 +1,466 @@
+package com.whispertflite.asr;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+// Bounded queue of live audio between the recorder and the transcription thread, on top of an
+// AudioRingBuffer. Audio is consumed in windows of at least one chunk; how the queue behaves once
+// more than maxPendingSamples are waiting (inference slower than real time) is set by the policy:
+//   BLOCK        the producer waits for the consumer; nothing is lost, but the recorder thread
+//                stalls and AudioRecord may overrun instead
+//   DROP_OLDEST  the consumer skips the oldest whole chunks of the backlog, keeping the latest
+//                maxPendingSamples; skipped samples are counted as dropped
+//   COALESCE     the consumer takes every pending chunk (up to the 30 second window) as one
+//                window, so one inference catches up with the backlog; chunks folded into a
+//                window are counted as merged
+// In every policy the pending audio never exceeds the ring capacity; anything past it is dropped
+// by the ring and counted too.
+// With a VoiceActivityDetector set, windows follow utterances instead of chunks: the consumer
+// feeds new audio to the detector frame by frame, drops silence (keeping paddingSamples around
+// speech) without handing it out, and returns a window as soon as an utterance completes. Speech
+// running longer than the 30 second window (or maxPendingSamples under BLOCK if smaller, so the
+// producer never waits on a window that cannot complete) is cut and continues in the next window.
+// endOfStream() flushes: no window crosses the end of a stream, and the audio left before it is
+// handed out as a window that ends the stream.
+public class LiveAudioQueue {
+    public enum Policy {
+        BLOCK, DROP_OLDEST, COALESCE
+    }
+
+    // How often a producer blocked by BLOCK checks whether it should still wait
+    private static final long PRODUCER_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final AudioRingBuffer mRing;
+    private final int mChunkSamples;
+    private final int mMaxWindowSamples;
+    private volatile int mMaxPendingSamples;
+    private volatile Policy mPolicy;
+
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+    private final AtomicLong mMergedChunks = new AtomicLong();
+    private final AtomicLong mSilentSamples = new AtomicLong();
+
+    // Detector requested by setVoiceActivityDetector, picked up by the consumer on its next take()
+    private volatile VoiceActivityDetector mRequestedVad;
+    private volatile int mPaddingSamples;
+
+    // Consumer-side detector state: stream positions of the detector's sample 0 and of the end of
+    // the audio fed to it, and the last utterance it completed (-1 if none pending)
+    private VoiceActivityDetector mVad;
+    private long mVadBase = 0;
+    private long mScanned = 0;
+    private long mUtteranceStart = -1;
+    private long mUtteranceEnd = -1;
+    private boolean mWindowEndsUtterance = false;
+
+    // Stream positions marked by the producer's last endOfStream() and clear() (-1 if none), the
+    // marks the consumer has handled, and whether windows were handed out since the last stream
+    // ended
+    private volatile long mStreamEnd = -1;
+    private volatile long mClearPosition = -1;
+    private long mHandledEnd = -1;
+    private long mHandledClear = -1;
+    private boolean mStreamOpen = false;
+    private boolean mWindowEndsStream = false;
+
+    // Window handed out by take(), valid until release()
+    private int mWindowOffset = 0;
+    private int mWindowLength = 0;
+
+    public LiveAudioQueue(int chunkSamples, int maxWindowSamples, int maxPendingSamples, Policy policy) {
+        if (chunkSamples < 1 || maxWindowSamples < chunkSamples) {
+            throw new IllegalArgumentException("Invalid chunk/window size: " + chunkSamples + "/" + maxWindowSamples);
+        }
+        mRing = new AudioRingBuffer(maxWindowSamples);
+        mChunkSamples = chunkSamples;
+        mMaxWindowSamples = maxWindowSamples;
+        setMaxPendingSamples(maxPendingSamples);
+        setPolicy(policy);
+    }
+
+    public void setPolicy(Policy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Backpressure policy must not be null");
+        }
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    // Backlog allowed before the policy applies, at least one chunk and at most the ring capacity
+    public void setMaxPendingSamples(int maxPendingSamples) {
+        if (maxPendingSamples < mChunkSamples || maxPendingSamples > mRing.capacity()) {
+            throw new IllegalArgumentException("Max pending samples must be between one chunk and the buffer size: " + maxPendingSamples);
+        }
+        mMaxPendingSamples = maxPendingSamples;
+    }
+
+    // Audio lost to backpressure: skipped by DROP_OLDEST or not fitting in the buffer
+    public long getDroppedSamples() {
+        return mDroppedSamples.get() + mRing.getDroppedSamples();
+    }
+
+    // Chunks transcribed as part of a larger COALESCE window instead of on their own
+    public long getMergedChunks() {
+        return mMergedChunks.get();
+    }
+
+    // Cut windows at utterance boundaries and skip silence, keeping paddingSamples of context on
+    // each side of the speech; null goes back to fixed chunks. Takes effect on the next take().
+    public void setVoiceActivityDetector(VoiceActivityDetector vad, int paddingSamples) {
+        if (paddingSamples < 0 || paddingSamples > mChunkSamples) {
+            throw new IllegalArgumentException("Padding must be between 0 and one chunk: " + paddingSamples);
+        }
+        mPaddingSamples = paddingSamples;
+        mRequestedVad = vad;
+    }
+
+    // Silence dropped by the detector without being transcribed
+    public long getSilentSamples() {
+        return mSilentSamples.get();
+    }
+
+    /////////////////////////////////// Producer ///////////////////////////////////
+
+    // Append little-endian PCM16 bytes; waits first if the policy is BLOCK
+    public void writePcm16(byte[] data, int offset, int length) {
+        writePcm16(data, offset, length, null);
+    }
+
+    // As above; a BLOCK wait also ends once running returns false, e.g. when the recording is
+    // stopped, and the samples not written are counted as dropped
+    public void writePcm16(byte[] data, int offset, int length, BooleanSupplier running) {
+        while (length > 0) {
+            int nSamples = Math.min(length / 2, reserve(length / 2, running));
+            if (nSamples == 0) {
+                mDroppedSamples.addAndGet(length / 2); // interrupted or stopped
+                return;
+            }
+            mRing.writePcm16(data, offset, 2 * nSamples);
+            offset += 2 * nSamples;
+            length -= 2 * nSamples;
+            if (mPolicy != Policy.BLOCK) {
+                return; // the ring has dropped and counted what did not fit
+            }
+        }
+    }
+
+    public void write(float[] samples, int offset, int length) {
+        write(samples, offset, length, null);
+    }
+
+    public void write(float[] samples, int offset, int length, BooleanSupplier running) {
+        while (length > 0) {
+            int nSamples = Math.min(length, reserve(length, running));
+            if (nSamples == 0) {
+                mDroppedSamples.addAndGet(length);
+                return;
+            }
+            mRing.write(samples, offset, nSamples);
+            offset += nSamples;
+            length -= nSamples;
+            if (mPolicy != Policy.BLOCK) {
+                return;
+            }
+        }
+    }
+
+    // The stream ends here, e.g. when the recording stops: the consumer still hands out the audio
+    // written so far, the last window (the speech in progress or the partial chunk, possibly
+    // empty) ending the stream
+    public void endOfStream() {
+        mStreamEnd = mRing.writePosition();
+        mRing.wakeConsumer();
+    }
+
+    // Drop the audio written so far and not yet handed out, e.g. when a new recording starts.
+    // Pending audio of a stream ended with endOfStream() is still handed out first.
+    public void clear() {
+        mClearPosition = mRing.writePosition();
+        mRing.wakeConsumer();
+    }
+
+    // Number of samples the producer may write now, 0 if it was interrupted or stopped waiting
+    private int reserve(int nSamples, BooleanSupplier running) {
+        if (mPolicy != Policy.BLOCK) {
+            return nSamples;
+        }
+        // Any room is used, so the backlog always fills up to maxPending: waiting for room for the
+        // whole block could stall it just short of a window the consumer is waiting for
+        int maxPending = mMaxPendingSamples;
+        int pending;
+        while ((pending = mRing.awaitAvailableAtMost(maxPending - 1, PRODUCER_CHECK_NANOS)) >= maxPending) {
+            if (Thread.currentThread().isInterrupted() || (running != null && !running.getAsBoolean())) {
+                return 0;
+            }
+        }
+        return Math.min(nSamples, maxPending - pending);
+    }
+
+    /////////////////////////////////// Consumer ///////////////////////////////////
+
+    // Wait for the next window. Returns false if the thread was interrupted.
+    public boolean take() {
+        VoiceActivityDetector vad = mRequestedVad;
+        if (vad != mVad) {
+            startDetector(vad, mRing.readPosition());
+        }
+        mWindowEndsUtterance = false;
+        mWindowEndsStream = false;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (takeStreamBoundary(vad) || (vad != null ? takeUtterance(vad) : takeChunk())) {
+                mStreamOpen = !mWindowEndsStream;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Stream position the next window must not cross: a pending endOfStream() or clear()
+    private long streamLimit() {
+        long limit = Long.MAX_VALUE;
+        long end = mStreamEnd;
+        if (end > mHandledEnd) {
+            limit = end;
+        }
+        long clear = mClearPosition;
+        if (clear > mHandledClear) {
+            limit = Math.min(limit, clear);
+        }
+        return limit;
+    }
+
+    // Handle a pending clear() or an endOfStream() the consumer has reached; returns true with
+    // the last window of the stream, possibly empty
+    private boolean takeStreamBoundary(VoiceActivityDetector vad) {
+        long read = mRing.readPosition();
+        long end = mStreamEnd;
+        long clear = mClearPosition;
+        boolean endPending = end > mHandledEnd;
+
+        // A clear() after the end of the previous stream waits until that stream is handed out
+        if (clear > mHandledClear && !(endPending && end <= clear)) {
+            mHandledClear = clear;
+            boolean open = mStreamOpen || clear > read;
+            if (clear > read) {
+                mRing.consume((int) (clear - read));
+            }
+            if (vad != null) {
+                startDetector(vad, mRing.readPosition());
+            }
+            if (open) {
+                endStream(0);
+                return true;
+            }
+            return false;
+        }
+        if (!endPending) {
+            return false;
+        }
+
+        // Whole chunks or detector frames before the end still go through take() as usual
+        long last;
+        if (vad == null) {
+            if (end - read >= mChunkSamples) {
+                return false;
+            }
+            last = read;
+        } else {
+            if (end - mScanned >= VoiceActivityDetector.FRAME_SAMPLES) {
+                return false;
+            }
+            // The utterance in progress, if any, is cut at the end of the stream
+            long speechStart = vad.getSpeechStart();
+            last = speechStart < 0 ? end : Math.max(read, mVadBase + speechStart - mPaddingSamples);
+            skipSilence((int) (last - read));
+            startDetector(vad, end);
+        }
+        mHandledEnd = end;
+        endStream((int) (end - last));
+        return true;
+    }
+
+    private void endStream(int length) {
+        mWindowLength = length;
+        mWindowOffset = mRing.readOffset();
+        mWindowEndsUtterance = true;
+        mWindowEndsStream = true;
+    }
+
+    // Next window of fixed chunks; false if woken or interrupted without one
+    private boolean takeChunk() {
+        int available = mRing.awaitAvailable(mChunkSamples);
+        // Read after the samples, so a mark placed before them is seen
+        available = (int) Math.min(available, streamLimit() - mRing.readPosition());
+        if (available < mChunkSamples) {
+            return false;
+        }
+
+        switch (mPolicy) {
+            case DROP_OLDEST: {
+                int excess = available - mMaxPendingSamples;
+                if (excess > 0) {
+                    int skip = (excess + mChunkSamples - 1) / mChunkSamples * mChunkSamples;
+                    skip = Math.min(skip, available - mChunkSamples);
+                    mRing.consume(skip);
+                    mDroppedSamples.addAndGet(skip);
+                }
+                mWindowLength = mChunkSamples;
+                break;
+            }
+            case COALESCE: {
+                // Past a full window the oldest audio cannot be merged any more
+                int excess = available - mMaxWindowSamples;
+                if (excess > 0) {
+                    mRing.consume(excess);
+                    mDroppedSamples.addAndGet(excess);
+                    available -= excess;
+                }
+                int chunks = available / mChunkSamples;
+                mWindowLength = available > mMaxPendingSamples ? available : mChunkSamples;
+                if (mWindowLength > mChunkSamples) {
+                    mMergedChunks.addAndGet(chunks - 1);
+                }
+                break;
+            }
+            default:
+                mWindowLength = mChunkSamples;
+                break;
+        }
+
+        mWindowOffset = mRing.readOffset();
+        return true;
+    }
+
+    // Restart the detector on the stream from position on
+    private void startDetector(VoiceActivityDetector vad, long position) {
+        if (mVad != null) {
+            mVad.setListener(null);
+        }
+        mVad = vad;
+        if (vad == null) {
+            return;
+        }
+        vad.reset();
+        vad.setListener(new VoiceActivityDetector.Listener() {
+            @Override
+            public void onSpeechStart(long startSample) {
+            }
+
+            @Override
+            public void onUtteranceComplete(long startSample, long endSample) {
+                mUtteranceStart = mVadBase + startSample;
+                mUtteranceEnd = mVadBase + endSample;
+            }
+        });
+        mVadBase = mScanned = position;
+        mUtteranceEnd = -1;
+    }
+
+    // Next utterance window; false if woken or interrupted without one
+    private boolean takeUtterance(VoiceActivityDetector vad) {
+        int padding = mPaddingSamples;
+        // The backlog allowed under BLOCK may round up past the window both engines transcribe
+        int maxWindow = mPolicy == Policy.BLOCK ? Math.min(mMaxPendingSamples, mMaxWindowSamples) : mMaxWindowSamples;
+        final int frame = VoiceActivityDetector.FRAME_SAMPLES;
+
+        while (true) {
+            long read = mRing.readPosition();
+            int scanned = (int) (mScanned - read);
+            // No frame left before the end of the stream: nothing would wake another wait
+            if (streamLimit() - read < scanned + frame) {
+                return false;
+            }
+            int available = mRing.awaitAvailable(scanned + frame);
+            available = (int) Math.min(available, streamLimit() - read);
+            if (available < scanned + frame) {
+                return false;
+            }
+
+            // Feed whole frames until an utterance completes or the window is full
+            float[] buffer = mRing.array();
+            int offset = mRing.readOffset();
+            while (scanned + frame <= available && scanned + frame <= maxWindow && mUtteranceEnd < 0) {
+                vad.process(buffer, offset + scanned, frame);
+                scanned += frame;
+            }
+            mScanned = read + scanned;
+
+            if (mUtteranceEnd >= 0) {
+                long start = Math.max(read, mUtteranceStart - padding);
+                long end = Math.min(mScanned, mUtteranceEnd + padding);
+                mUtteranceEnd = -1;
+                if (end > start) {
+                    skipSilence((int) (start - read));
+                    mWindowLength = (int) (end - start);
+                    mWindowOffset = mRing.readOffset();
+                    mWindowEndsUtterance = true;
+                    return true;
+                }
+                continue;
+            }
+
+            long speechStart = vad.getSpeechStart();
+            if (speechStart < 0) {
+                // Silence: only the padding before the next utterance is kept
+                skipSilence((int) Math.max(0, mScanned - padding - read));
+                continue;
+            }
+
+            long start = Math.max(read, mVadBase + speechStart - padding);
+            skipSilence((int) (start - read));
+            if (mScanned - start + frame > maxWindow) {
+                // Speech longer than a window: hand out what there is, the utterance goes on
+                mWindowLength = (int) (mScanned - start);
+                mWindowOffset = mRing.readOffset();
+                return true;
+            }
+        }
+    }
+
+    private void skipSilence(int nSamples) {
+        if (nSamples > 0) {
+            mRing.consume(nSamples);
+            mSilentSamples.addAndGet(nSamples);
+        }
+    }
+
+    // The current window is array()[windowOffset() .. windowOffset() + windowLength())
+    public float[] array() {
+        return mRing.array();
+    }
+
+    public int windowOffset() {
+        return mWindowOffset;
+    }
+
+    public int windowLength() {
+        return mWindowLength;
+    }
+
+    // Stream position of the current window, in samples since the queue was created
+    public long windowPosition() {
+        return mRing.readPosition();
+    }
+
+    // Whether the current window ends an utterance detected by the voice activity detector, or
+    // the stream
+    public boolean windowEndsUtterance() {
+        return mWindowEndsUtterance;
+    }
+
+    // Whether the current window is the last of a stream, after endOfStream() or clear(); the
+    // next window starts a new one
+    public boolean windowEndsStream() {
+        return mWindowEndsStream;
+    }
+
+    // Hand the current window back to the producer
+    public void release() {
+        mRing.consume(mWindowLength);
+        mWindowLength = 0;
+    }
+}
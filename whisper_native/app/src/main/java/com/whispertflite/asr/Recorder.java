@@ -13,13 +13,11 @@ import androidx.core.app.ActivityCompat;
 
 import com.whispertflite.utils.WaveUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -29,8 +27,6 @@ public class Recorder {
 
     public interface RecorderListener {
         void onUpdateReceived(String message);
-
-        void onDataReceived(float[] samples);
     }
 
     private static final String TAG = "Recorder";
@@ -44,6 +40,7 @@ public class Recorder {
 
     private String mWavFilePath;
     private RecorderListener mListener;
+    private volatile LiveAudioQueue mAudioQueue;
     private final Lock lock = new ReentrantLock();
     private final Condition hasTask = lock.newCondition();
     private final Object fileSavedLock = new Object(); // Lock object for wait/notify
@@ -68,6 +65,11 @@ public class Recorder {
         this.mWavFilePath = wavFile;
     }
 
+    // Live samples are written to this queue as they are read from the microphone; null to stop
+    public void setAudioQueue(LiveAudioQueue audioQueue) {
+        this.mAudioQueue = audioQueue;
+    }
+
     public void start() {
         if (!mInProgress.compareAndSet(false, true)) {
             Log.d(TAG, "Recording is already in progress...");
@@ -104,11 +106,6 @@ public class Recorder {
             mListener.onUpdateReceived(message);
     }
 
-    private void sendData(float[] samples) {
-        if (mListener != null)
-            mListener.onDataReceived(samples);
-    }
-
     private void recordLoop() {
         while (true) {
             lock.lock();
@@ -158,27 +155,26 @@ public class Recorder {
 
         // Calculate maximum byte counts for 30 seconds (for saving)
         int bytesForThirtySeconds = sampleRateInHz * bytesPerSample * channels * 30;
-        int bytesForThreeSeconds = sampleRateInHz * bytesPerSample * channels * 3;
 
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream(); // Buffer for saving data in wave file
-        ByteArrayOutputStream realtimeBuffer = new ByteArrayOutputStream(); // Buffer for real-time processing
-
-        byte[] audioData = new byte[bufferSize];
+        // AudioRecord reads straight into the recording, which is sized for 30 seconds up front;
+        // live samples go from there into the live queue, so the loop allocates nothing
+        byte[] outputBuffer = new byte[bytesForThirtySeconds]; // Buffer for saving data in wave file
+        LiveAudioQueue audioQueue = mAudioQueue;
+        if (audioQueue != null) {
+            audioQueue.clear(); // nothing left over from before this recording
+        }
         int totalBytesRead = 0;
 
         while (mInProgress.get() && totalBytesRead < bytesForThirtySeconds) {
-            int bytesRead = audioRecord.read(audioData, 0, bufferSize);
+            int bytesToRead = Math.min(bufferSize, bytesForThirtySeconds - totalBytesRead);
+            int bytesRead = audioRecord.read(outputBuffer, totalBytesRead, bytesToRead);
             if (bytesRead > 0) {
-                outputBuffer.write(audioData, 0, bytesRead);  // Save all bytes read up to 30 seconds
-                realtimeBuffer.write(audioData, 0, bytesRead); // Accumulate real-time audio data
-                totalBytesRead += bytesRead;
-
-                // Check if realtimeBuffer has more than 3 seconds of data
-                if (realtimeBuffer.size() >= bytesForThreeSeconds) {
-                    float[] samples = convertToFloatArray(ByteBuffer.wrap(realtimeBuffer.toByteArray()));
-                    realtimeBuffer.reset(); // Clear the buffer for the next accumulation
-                    sendData(samples); // Send real-time data for processing
+                // Only waits for the transcription thread if the queue policy is BLOCK, and not
+                // past stop()
+                if (audioQueue != null) {
+                    audioQueue.writePcm16(outputBuffer, totalBytesRead, bytesRead, mInProgress::get);
                 }
+                totalBytesRead += bytesRead;
             } else {
                 Log.d(TAG, "AudioRecord error, bytes read: " + bytesRead);
                 break;
@@ -188,8 +184,14 @@ public class Recorder {
         audioRecord.stop();
         audioRecord.release();
 
+        // Lets the transcription thread hand out the last utterance without waiting for more audio
+        if (audioQueue != null) {
+            audioQueue.endOfStream();
+        }
+
         // Save recorded audio data to file (up to 30 seconds)
-        WaveUtil.createWaveFile(mWavFilePath, outputBuffer.toByteArray(), sampleRateInHz, channels, bytesPerSample);
+        byte[] recording = totalBytesRead == outputBuffer.length ? outputBuffer : Arrays.copyOf(outputBuffer, totalBytesRead);
+        WaveUtil.createWaveFile(mWavFilePath, recording, sampleRateInHz, channels, bytesPerSample);
         sendUpdate(MSG_RECORDING_DONE);
 
         // Notify the waiting thread that recording is complete
@@ -200,15 +202,6 @@ public class Recorder {
 //        moveFileToSdcard(mWavFilePath);
     }
 
-    private float[] convertToFloatArray(ByteBuffer buffer) {
-        buffer.order(ByteOrder.nativeOrder());
-        float[] samples = new float[buffer.remaining() / 2];
-        for (int i = 0; i < samples.length; i++) {
-            samples[i] = buffer.getShort() / 32768.0f;
-        }
-        return samples;
-    }
-
     // Move file from /data/user/0/com.whispertflite/files/MicInput.wav to
     // sdcard path /storage/emulated/0/Android/data/com.whispertflite/files/MicInput.wav
     // Copy and delete the original file
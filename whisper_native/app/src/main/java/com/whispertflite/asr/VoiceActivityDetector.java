@@ -0,0 +1,143 @@
+package com.whispertflite.asr;
+
+import com.whispertflite.utils.WhisperUtil;
+
+// Streaming energy-based voice activity detector with hysteresis and hangover.
+// Audio is measured in 512-sample frames (32 ms at 16 kHz, as in silent_detection.cpp). Speech
+// starts once minSpeech worth of consecutive frames are louder than the start threshold, and ends
+// once the frames have stayed below the lower stop threshold for the hangover time, so short
+// pauses between words do not split an utterance. Positions are stream sample positions, counted
+// from the last reset. Samples can be pushed in blocks of any size; the detector keeps no audio.
+// Not thread-safe: feed it from one thread.
+public class VoiceActivityDetector {
+    public static final int FRAME_SAMPLES = 512;
+    public static final float DEFAULT_START_DB = -35.0f;
+    public static final float DEFAULT_STOP_DB = -40.0f;
+    public static final int DEFAULT_MIN_SPEECH_MS = 96;
+    public static final int DEFAULT_HANGOVER_MS = 600;
+
+    public interface Listener {
+        void onSpeechStart(long startSample);
+
+        // endSample is the end of the last loud frame, before the hangover
+        void onUtteranceComplete(long startSample, long endSample);
+    }
+
+    private Listener mListener;
+
+    // Mean square thresholds of a frame, from the dBFS settings
+    private float mStartPower;
+    private float mStopPower;
+    private int mMinSpeechFrames;
+    private int mHangoverFrames;
+
+    // Partial frame carried over between pushes
+    private double mFrameSum = 0;
+    private int mFrameFill = 0;
+    private long mPosition = 0;
+
+    private boolean mInSpeech = false;
+    private int mLoudFrames = 0;
+    private int mQuietFrames = 0;
+    private long mSpeechStart = -1;
+    private long mLastLoudEnd = -1;
+
+    public VoiceActivityDetector() {
+        setThresholds(DEFAULT_START_DB, DEFAULT_STOP_DB);
+        setTiming(DEFAULT_MIN_SPEECH_MS, DEFAULT_HANGOVER_MS);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // Frame level (RMS in dBFS) that starts speech, and the lower level it must fall under to end
+    public void setThresholds(float startDb, float stopDb) {
+        if (stopDb > startDb) {
+            throw new IllegalArgumentException("Stop threshold must not be above the start threshold: " + startDb + "/" + stopDb);
+        }
+        mStartPower = (float) Math.pow(10.0, startDb / 10.0);
+        mStopPower = (float) Math.pow(10.0, stopDb / 10.0);
+    }
+
+    // Loud time needed to start an utterance and quiet time needed to end it
+    public void setTiming(int minSpeechMs, int hangoverMs) {
+        if (minSpeechMs < 0 || hangoverMs < 0) {
+            throw new IllegalArgumentException("Invalid VAD timing: " + minSpeechMs + "/" + hangoverMs);
+        }
+        mMinSpeechFrames = Math.max(1, msToFrames(minSpeechMs));
+        mHangoverFrames = Math.max(1, msToFrames(hangoverMs));
+    }
+
+    public void reset() {
+        mFrameSum = 0;
+        mFrameFill = 0;
+        mPosition = 0;
+        mInSpeech = false;
+        mLoudFrames = 0;
+        mQuietFrames = 0;
+        mSpeechStart = -1;
+        mLastLoudEnd = -1;
+    }
+
+    public boolean isSpeech() {
+        return mInSpeech;
+    }
+
+    // Start of the current utterance, -1 outside speech
+    public long getSpeechStart() {
+        return mInSpeech ? mSpeechStart : -1;
+    }
+
+    // Number of samples pushed since the last reset
+    public long getPosition() {
+        return mPosition;
+    }
+
+    // Feed samples[offset .. offset + length); listener events fire as frames complete
+    public void process(float[] samples, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            float sample = samples[i];
+            mFrameSum += sample * sample;
+            mPosition++;
+            if (++mFrameFill == FRAME_SAMPLES) {
+                endFrame((float) (mFrameSum / FRAME_SAMPLES));
+                mFrameSum = 0;
+                mFrameFill = 0;
+            }
+        }
+    }
+
+    private void endFrame(float power) {
+        long frameEnd = mPosition;
+
+        if (!mInSpeech) {
+            mLoudFrames = power > mStartPower ? mLoudFrames + 1 : 0;
+            if (mLoudFrames >= mMinSpeechFrames) {
+                mInSpeech = true;
+                mQuietFrames = 0;
+                mSpeechStart = frameEnd - (long) mLoudFrames * FRAME_SAMPLES;
+                mLastLoudEnd = frameEnd;
+                if (mListener != null) {
+                    mListener.onSpeechStart(mSpeechStart);
+                }
+            }
+            return;
+        }
+
+        if (power >= mStopPower) {
+            mQuietFrames = 0;
+            mLastLoudEnd = frameEnd;
+        } else if (++mQuietFrames >= mHangoverFrames) {
+            mInSpeech = false;
+            mLoudFrames = 0;
+            if (mListener != null) {
+                mListener.onUtteranceComplete(mSpeechStart, mLastLoudEnd);
+            }
+        }
+    }
+
+    private static int msToFrames(int ms) {
+        return (int) ((long) ms * WhisperUtil.WHISPER_SAMPLE_RATE / 1000 / FRAME_SAMPLES);
+    }
+}
@@ -3,14 +3,15 @@ package com.whispertflite.asr;
 import android.content.Context;
 import android.util.Log;
 
+import com.whispertflite.engine.LongFormTranscriber;
 import com.whispertflite.engine.WhisperEngine;
 import com.whispertflite.engine.WhisperEngineJava;
 import com.whispertflite.engine.WhisperEngineNative;
+import com.whispertflite.utils.SilenceCompactor;
+import com.whispertflite.utils.WhisperUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -35,12 +36,23 @@ public class Whisper {
         TRANSLATE, TRANSCRIBE
     }
 
+    // Live audio is transcribed in chunks of at least 3 seconds and windows of at most 30 seconds.
+    // By default up to 6 seconds may wait before pending chunks are coalesced.
+    private static final int LIVE_CHUNK_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * 3;
+    private static final int LIVE_BUFFER_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    private static final int LIVE_MAX_PENDING_SAMPLES = 2 * LIVE_CHUNK_SAMPLES;
+    // Context kept before and after each utterance when voice activity detection is on
+    private static final int LIVE_VAD_PADDING_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * 3 / 10;
+
     private final AtomicBoolean mInProgress = new AtomicBoolean(false);
-    private final Queue<float[]> audioBufferQueue = new LinkedList<>();
+    private final LiveAudioQueue mAudioQueue = new LiveAudioQueue(LIVE_CHUNK_SAMPLES, LIVE_BUFFER_SAMPLES,
+            LIVE_MAX_PENDING_SAMPLES, LiveAudioQueue.Policy.COALESCE);
 
     private final WhisperEngine mWhisperEngine;
+    private final LongFormTranscriber mLongFormTranscriber;
     private Action mAction;
     private String mWavFilePath;
+    private String[] mWavFilePaths;
     private WhisperListener mUpdateListener;
 
     private final Lock taskLock = new ReentrantLock();
@@ -52,6 +64,9 @@ public class Whisper {
     public Whisper(Context context) {
 //        this.mWhisperEngine = new WhisperEngineJava(context);
         this.mWhisperEngine = new WhisperEngineNative(context);
+        this.mLongFormTranscriber = new LongFormTranscriber(mWhisperEngine);
+        setVoiceActivityDetector(new VoiceActivityDetector());
+        setSilenceCompactor(new SilenceCompactor());
 
         // Start thread for file transcription for file transcription
         Thread threadTranscbFile = new Thread(this::transcribeFileLoop);
@@ -80,6 +95,7 @@ public class Whisper {
     }
 
     public void unloadModel() {
+        mLongFormTranscriber.shutdown();
         mWhisperEngine.deinitialize();
     }
 
@@ -89,6 +105,24 @@ public class Whisper {
 
     public void setFilePath(String wavFile) {
         this.mWavFilePath = wavFile;
+        this.mWavFilePaths = null;
+    }
+
+    // Transcribe several files with the next start(); results are sent in the order given
+    public void setFilePaths(String... wavFiles) {
+        this.mWavFilePaths = wavFiles.clone();
+        this.mWavFilePath = null;
+    }
+
+    // Split the Java engine into instances interpreters of threadsPerInstance threads each, so
+    // long-form windows and batch files are transcribed concurrently; call before loadModel().
+    // The native engine runs a single interpreter and ignores this.
+    public void setInterpreterPool(int instances, int threadsPerInstance) {
+        if (mWhisperEngine instanceof WhisperEngineJava) {
+            ((WhisperEngineJava) mWhisperEngine).setInterpreterPool(instances, threadsPerInstance);
+        } else {
+            Log.d(TAG, "Interpreter pool is only supported by the Java engine");
+        }
     }
 
     public void start() {
@@ -96,6 +130,7 @@ public class Whisper {
             Log.d(TAG, "Execution is already in progress...");
             return;
         }
+        mLongFormTranscriber.resetCancel();
         taskLock.lock();
         try {
             taskAvailable = true;
@@ -107,6 +142,18 @@ public class Whisper {
 
     public void stop() {
         mInProgress.set(false);
+        mLongFormTranscriber.cancel();
+    }
+
+    // Overlap between consecutive 30 second windows of recordings longer than 30 seconds
+    public void setLongFormOverlap(float seconds) {
+        mLongFormTranscriber.setOverlapSeconds(seconds);
+    }
+
+    // Cut long pauses from files before they are windowed, so fewer 30 second windows are needed;
+    // null transcribes files as they are
+    public void setSilenceCompactor(SilenceCompactor compactor) {
+        mLongFormTranscriber.setSilenceCompactor(compactor);
     }
 
     public boolean isInProgress() {
@@ -132,22 +179,29 @@ public class Whisper {
 
     private void transcribeFile() {
         try {
-            if (mWhisperEngine.isInitialized() && mWavFilePath != null) {
-                File waveFile = new File(mWavFilePath);
-                if (waveFile.exists()) {
+            String[] batch = mWavFilePaths;
+            String[] wavFilePaths = batch != null ? batch
+                    : mWavFilePath != null ? new String[]{mWavFilePath} : null;
+            if (mWhisperEngine.isInitialized() && wavFilePaths != null) {
+                if (allExist(wavFilePaths)) {
                     long startTime = System.currentTimeMillis();
                     sendUpdate(MSG_PROCESSING);
 
-                    String result = null;
+                    // Files of any length are walked in 30 second windows; each stitched
+                    // segment is sent as soon as its window is transcribed. A batch is spread
+                    // over the engine's interpreters and each file sent once it is done.
                     synchronized (mWhisperEngine) {
-                        if (mAction == Action.TRANSCRIBE) {
-                            result = mWhisperEngine.transcribeFile(mWavFilePath);
+                        if (mAction == Action.TRANSCRIBE && batch != null) {
+                            mLongFormTranscriber.transcribeFiles(wavFilePaths,
+                                    (index, wavePath, text) -> sendResult(text));
+                        } else if (mAction == Action.TRANSCRIBE) {
+                            mLongFormTranscriber.transcribeFile(wavFilePaths[0],
+                                    (index, startMs, endMs, text) -> sendResult(text));
                         } else {
 //                            result = mWhisperEngine.getTranslation(mWavFilePath);
                             Log.d(TAG, "TRANSLATE feature is not implemented");
                         }
                     }
-                    sendResult(result);
 
                     long timeTaken = System.currentTimeMillis() - startTime;
                     Log.d(TAG, "Time Taken for transcription: " + timeTaken + "ms");
@@ -166,6 +220,15 @@ public class Whisper {
         }
     }
 
+    private static boolean allExist(String[] wavFilePaths) {
+        for (String wavFilePath : wavFilePaths) {
+            if (!new File(wavFilePath).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void sendUpdate(String message) {
         if (mUpdateListener != null) {
             mUpdateListener.onUpdateReceived(message);
@@ -180,36 +243,71 @@ public class Whisper {
 
     /////////////////////// Live MIC feed transcription calls /////////////////////////////////
     private void transcribeBufferLoop() {
+        long droppedSamples = 0;
+        long mergedChunks = 0;
+        long silentSamples = 0;
         while (!Thread.currentThread().isInterrupted()) {
-            float[] samples = readBuffer();
-            if (samples != null) {
-                synchronized (mWhisperEngine) {
-                    String result = mWhisperEngine.transcribeBuffer(samples);
-                    sendResult(result);
+            if (!mAudioQueue.take()) {
+                continue; // interrupted
+            }
+
+            // The window is contiguous in the ring and is passed without an intermediate copy
+            synchronized (mWhisperEngine) {
+                // The last window of a stream may be empty
+                if (mAudioQueue.windowLength() > 0) {
+                    String result = mWhisperEngine.transcribeBuffer(mAudioQueue.array(),
+                            mAudioQueue.windowOffset(), mAudioQueue.windowLength());
+                    if (result != null && !result.isEmpty()) {
+                        sendResult(result);
+                    }
+                }
+
+                // A finished utterance is decoded now instead of waiting for more audio
+                if (mAudioQueue.windowEndsUtterance()) {
+                    String result = mWhisperEngine.flushBuffer();
+                    if (result != null && !result.isEmpty()) {
+                        sendResult(result);
+                    }
+                }
+                // The next recording is not stitched to this one
+                if (mAudioQueue.windowEndsStream()) {
+                    mWhisperEngine.resetBuffer();
                 }
             }
+            mAudioQueue.release();
+
+            if (mAudioQueue.getDroppedSamples() != droppedSamples || mAudioQueue.getMergedChunks() != mergedChunks) {
+                droppedSamples = mAudioQueue.getDroppedSamples();
+                mergedChunks = mAudioQueue.getMergedChunks();
+                Log.d(TAG, "Live audio behind real time, dropped " + droppedSamples + " samples, merged " + mergedChunks + " chunks");
+            }
+            if (mAudioQueue.getSilentSamples() != silentSamples) {
+                silentSamples = mAudioQueue.getSilentSamples();
+                Log.d(TAG, "Skipped " + silentSamples + " silent samples");
+            }
         }
     }
 
-    public void writeBuffer(float[] samples) {
-        synchronized (audioBufferQueue) {
-            audioBufferQueue.add(samples);
-            audioBufferQueue.notify();
-        }
+    // Queue the live transcription thread reads from; pass it to Recorder.setAudioQueue.
+    // It has a single producer: use either the recorder or writeBuffer, not both.
+    public LiveAudioQueue getAudioQueue() {
+        return mAudioQueue;
     }
 
-    private float[] readBuffer() {
-        synchronized (audioBufferQueue) {
-            while (audioBufferQueue.isEmpty()) {
-                try {
-                    audioBufferQueue.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return null;
-                }
-            }
-            return audioBufferQueue.poll();
-        }
+    // What live transcription does once more than maxPendingSeconds of audio are waiting
+    public void setLiveBackpressure(LiveAudioQueue.Policy policy, float maxPendingSeconds) {
+        mAudioQueue.setMaxPendingSamples((int) (maxPendingSeconds * WhisperUtil.WHISPER_SAMPLE_RATE));
+        mAudioQueue.setPolicy(policy);
+    }
+
+    // Cut live audio at utterance boundaries found by an energy voice activity detector, and skip
+    // inference on silence, instead of transcribing every chunk; null turns detection off
+    public void setVoiceActivityDetector(VoiceActivityDetector vad) {
+        mAudioQueue.setVoiceActivityDetector(vad, LIVE_VAD_PADDING_SAMPLES);
+    }
+
+    public void writeBuffer(float[] samples) {
+        mAudioQueue.write(samples, 0, samples.length);
     }
 
     public void setConvertToSimplifiedChinese(boolean convert) {
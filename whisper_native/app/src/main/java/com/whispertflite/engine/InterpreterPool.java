@@ -0,0 +1,80 @@
+package com.whispertflite.engine;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Fixed set of interpreters created from one memory-mapped model buffer.
+// The model is mapped once and shared read-only by every instance; each slot owns its interpreter
+// and its native-order I/O buffers, so slots that are checked out can run concurrently.
+// N instances with fewer threads each trade single-window latency for aggregate throughput.
+public class InterpreterPool {
+    public static final class Slot {
+        final int index;
+        final Interpreter interpreter;
+
+        // Sized for the interpreter's tensors and reused by every inference on this slot
+        final ByteBuffer inputBuffer;
+        final FloatBuffer inputFloats;
+        final ByteBuffer outputBuffer;
+        final IntBuffer outputTokens;
+
+        Slot(int index, Interpreter interpreter) {
+            this.index = index;
+            this.interpreter = interpreter;
+
+            Tensor inputTensor = interpreter.getInputTensor(0);
+            inputBuffer = ByteBuffer.allocateDirect(inputTensor.numBytes());
+            inputBuffer.order(ByteOrder.nativeOrder());
+            inputFloats = inputBuffer.asFloatBuffer();
+
+            Tensor outputTensor = interpreter.getOutputTensor(0);
+            outputBuffer = ByteBuffer.allocateDirect(outputTensor.numBytes());
+            outputBuffer.order(ByteOrder.nativeOrder());
+            outputTokens = outputBuffer.asIntBuffer();
+        }
+    }
+
+    private final Slot[] mSlots;
+    private final BlockingQueue<Slot> mAvailable;
+
+    // options (thread count, delegates) apply to every instance
+    public InterpreterPool(ByteBuffer model, Interpreter.Options options, int instances) {
+        if (instances < 1) {
+            throw new IllegalArgumentException("Interpreter pool needs at least one instance: " + instances);
+        }
+
+        mSlots = new Slot[instances];
+        mAvailable = new ArrayBlockingQueue<>(instances);
+        for (int i = 0; i < instances; i++) {
+            mSlots[i] = new Slot(i, new Interpreter(model, options));
+            mAvailable.add(mSlots[i]);
+        }
+    }
+
+    public int size() {
+        return mSlots.length;
+    }
+
+    // Check out an idle slot, waiting until one is returned if all are busy
+    public Slot acquire() throws InterruptedException {
+        return mAvailable.take();
+    }
+
+    public void release(Slot slot) {
+        mAvailable.add(slot);
+    }
+
+    public void close() {
+        mAvailable.clear();
+        for (Slot slot : mSlots) {
+            slot.interpreter.close();
+        }
+    }
+}
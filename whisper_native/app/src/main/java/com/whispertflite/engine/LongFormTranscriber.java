@@ -0,0 +1,421 @@
+package com.whispertflite.engine;
+
+import android.util.Log;
+
+import com.whispertflite.utils.SilenceCompactor;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Transcribes audio of any length by walking it in 30 second windows.
+// Consecutive windows overlap by a configurable amount so words cut at a window edge are heard
+// whole in one of them; the words transcribed twice in the overlap are removed when the segments
+// are stitched. Each stitched segment is delivered to the listener as soon as its window finishes.
+// WAV files are read one window at a time, so memory use does not grow with the recording length.
+// When the engine can run several windows at once (an InterpreterPool with more than one
+// instance), up to that many windows are transcribed concurrently and stitched in order.
+// With a SilenceCompactor set, long pauses are cut before windowing, so the windows are filled with
+// speech; segment times are mapped back to the original recording. Audio that fits in one window,
+// or has no pause to cut, is transcribed as it is.
+public class LongFormTranscriber {
+    private static final String TAG = "LongFormTranscriber";
+
+    public static final int WINDOW_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    public static final float DEFAULT_OVERLAP_SECONDS = 2.0f;
+
+    // Longest run of boundary words compared when stitching, and the length a word needs to be
+    // taken as overlap on its own; shorter single words ("the", "a") repeat by chance too often
+    private static final int MAX_STITCH_WORDS = 16;
+    private static final int MIN_SINGLE_WORD_LENGTH = 6;
+
+    public interface SegmentListener {
+        void onSegmentTranscribed(int index, long startMs, long endMs, String text);
+    }
+
+    public interface BatchListener {
+        void onFileTranscribed(int index, String wavePath, String text);
+    }
+
+    private final WhisperEngine mWhisperEngine;
+
+    // Window sample buffers for file reads, one per window in flight
+    private final Queue<float[]> mWindowBuffers = new ConcurrentLinkedQueue<>();
+    private ExecutorService mExecutor;
+    private int mExecutorThreads = 0;
+    private int mOverlapSamples = (int) (DEFAULT_OVERLAP_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE);
+    private volatile boolean mCancelled = false;
+    private volatile SilenceCompactor mSilenceCompactor;
+
+    public LongFormTranscriber(WhisperEngine whisperEngine) {
+        mWhisperEngine = whisperEngine;
+    }
+
+    public void setOverlapSeconds(float seconds) {
+        int samples = (int) (seconds * WhisperUtil.WHISPER_SAMPLE_RATE);
+        if (samples < 0 || samples >= WINDOW_SAMPLES) {
+            throw new IllegalArgumentException("Overlap must be shorter than the window: " + seconds);
+        }
+        mOverlapSamples = samples;
+    }
+
+    // Cut long pauses before transcription; null transcribes the audio as it is
+    public void setSilenceCompactor(SilenceCompactor compactor) {
+        mSilenceCompactor = compactor;
+    }
+
+    // Stop after the window in progress, or skip the next transcription if none has started yet
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    // Clear an earlier cancel(); call when new work is submitted, not when it starts, so that a
+    // cancel() issued in between still applies
+    public void resetCancel() {
+        mCancelled = false;
+    }
+
+    // Stop the worker threads; a later call starts new ones
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+            mExecutorThreads = 0;
+        }
+    }
+
+    // Transcribe a WAV file of any length; returns the stitched transcript
+    public String transcribeFile(String wavePath, SegmentListener listener) {
+        return transcribeFileWindows(wavePath, listener);
+    }
+
+    // Transcribe samples[offset .. offset + length) held in memory
+    public String transcribe(float[] samples, int offset, int length, SegmentListener listener) {
+        SilenceCompactor compactor = mSilenceCompactor;
+        // Audio that fits in one window takes one inference whatever is cut
+        SilenceCompactor.Index index = compactor == null || length <= WINDOW_SAMPLES ? null
+                : compactor.compact(samples, offset, length);
+        if (index == null || !index.hasCuts()) {
+            return transcribe(length, null, (start, windowLength) ->
+                    mWhisperEngine.transcribeWindow(samples, offset + start, windowLength), listener);
+        }
+
+        return transcribe(index.getCompactedLength(), index, (start, windowLength) -> {
+            float[] window = takeWindowBuffer();
+            try {
+                int read = index.read(samples, offset, start, window, windowLength);
+                return mWhisperEngine.transcribeWindow(window, 0, read);
+            } finally {
+                mWindowBuffers.add(window);
+            }
+        }, listener);
+    }
+
+    // Transcribe a batch of WAV files, results in input order. Files that fit in one window are
+    // spread over the engine's parallel slots; longer files are windowed one at a time.
+    public String[] transcribeFiles(String[] wavePaths, BatchListener listener) {
+        String[] results = new String[wavePaths.length];
+        int parallelism = Math.max(1, mWhisperEngine.getParallelism());
+        ExecutorService executor = parallelism > 1 ? getExecutor(parallelism) : null;
+
+        ArrayDeque<Future<String>> inFlight = new ArrayDeque<>();
+        int done = 0;
+        for (int i = 0; i < wavePaths.length && !mCancelled; i++) {
+            String wavePath = wavePaths[i];
+            if (executor != null && WaveUtil.getNumSamples(wavePath) <= WINDOW_SAMPLES) {
+                if (inFlight.size() == parallelism) {
+                    results[done] = await(inFlight.poll());
+                    notifyFile(listener, done, wavePaths[done], results[done]);
+                    done++;
+                }
+                inFlight.add(executor.submit(() -> transcribeFileWindows(wavePath, null)));
+                continue;
+            }
+
+            // Finish the queued short files first; a long file uses every slot for its windows
+            while (!inFlight.isEmpty()) {
+                results[done] = await(inFlight.poll());
+                notifyFile(listener, done, wavePaths[done], results[done]);
+                done++;
+            }
+            results[i] = transcribeFileWindows(wavePath, null);
+            notifyFile(listener, i, wavePath, results[i]);
+            done++;
+        }
+
+        while (!inFlight.isEmpty()) {
+            if (mCancelled) {
+                inFlight.poll().cancel(false);
+                continue;
+            }
+            results[done] = await(inFlight.poll());
+            notifyFile(listener, done, wavePaths[done], results[done]);
+            done++;
+        }
+        return results;
+    }
+
+    private interface WindowSource {
+        String transcribe(int start, int length);
+    }
+
+    private String transcribeFileWindows(String wavePath, SegmentListener listener) {
+        int nSamples = WaveUtil.getNumSamples(wavePath);
+
+        // A single window is handed to the engine as is; cutting pauses cannot save its inference
+        if (nSamples <= WINDOW_SAMPLES) {
+            String text = mWhisperEngine.transcribeFile(wavePath);
+            if (listener != null && text != null) {
+                listener.onSegmentTranscribed(0, 0, toMs(nSamples), text);
+            }
+            return text;
+        }
+
+        SilenceCompactor compactor = mSilenceCompactor;
+        SilenceCompactor.Index index = compactor != null ? compactFile(wavePath, compactor) : null;
+        if (index != null && index.hasCuts()) {
+            return transcribeFileCompacted(wavePath, index, listener);
+        }
+
+        return transcribe(nSamples, null, (start, length) -> {
+            float[] window = takeWindowBuffer();
+            try {
+                int read = WaveUtil.getSamples(wavePath, start, window, length);
+                return mWhisperEngine.transcribeWindow(window, 0, read);
+            } finally {
+                mWindowBuffers.add(window);
+            }
+        }, listener);
+    }
+
+    // One pass over the file finds the pauses; null if the file cannot be read
+    private SilenceCompactor.Index compactFile(String wavePath, SilenceCompactor compactor) {
+        float[] buffer = takeWindowBuffer();
+        try (WaveUtil.Reader reader = WaveUtil.Reader.open(wavePath)) {
+            SilenceCompactor.Index index = compactor.compactFile(reader, buffer);
+            Log.d(TAG, "Silence compaction: " + toMs(index.getOriginalLength()) + " ms -> " + toMs(index.getCompactedLength())
+                    + " ms, " + Math.max(0, index.getRangeCount() - 1) + " pauses cut");
+            return index;
+        } catch (IOException e) {
+            Log.e(TAG, "Silence compaction failed", e);
+            return null;
+        } finally {
+            mWindowBuffers.add(buffer);
+        }
+    }
+
+    // Each window gathers its kept ranges through one open file
+    private String transcribeFileCompacted(String wavePath, SilenceCompactor.Index index, SegmentListener listener) {
+        return transcribe(index.getCompactedLength(), index, (start, length) -> {
+            float[] window = takeWindowBuffer();
+            try (WaveUtil.Reader reader = WaveUtil.Reader.open(wavePath)) {
+                int read = index.read(reader, start, window, length);
+                return mWhisperEngine.transcribeWindow(window, 0, read);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading window at " + start, e);
+                return null;
+            } finally {
+                mWindowBuffers.add(window);
+            }
+        }, listener);
+    }
+
+    private float[] takeWindowBuffer() {
+        float[] window = mWindowBuffers.poll();
+        return window != null ? window : new float[WINDOW_SAMPLES];
+    }
+
+    // compacted maps window positions back to the original audio when it was compacted, else null
+    private String transcribe(int nSamples, SilenceCompactor.Index compacted, WindowSource source, SegmentListener listener) {
+        if (nSamples == 0) {
+            return ""; // nothing to transcribe, e.g. the audio was all silence
+        }
+        int step = WINDOW_SAMPLES - mOverlapSamples;
+        int nWindows = nSamples <= WINDOW_SAMPLES ? 1 : 1 + (nSamples - WINDOW_SAMPLES + step - 1) / step;
+        StringBuilder transcript = new StringBuilder();
+
+        // Keep up to `parallelism` windows in flight, consumed in order for stitching
+        int parallelism = Math.max(1, Math.min(mWhisperEngine.getParallelism(), nWindows));
+        ExecutorService executor = parallelism > 1 ? getExecutor(parallelism) : null;
+        ArrayDeque<Future<String>> inFlight = new ArrayDeque<>();
+        int submitted = 0;
+
+        for (int index = 0; index < nWindows && !mCancelled; index++) {
+            int start = index * step;
+            int length = Math.min(WINDOW_SAMPLES, nSamples - start);
+
+            String text;
+            if (executor == null) {
+                text = source.transcribe(start, length);
+            } else {
+                for (; submitted < nWindows && submitted < index + parallelism; submitted++) {
+                    int windowStart = submitted * step;
+                    int windowLength = Math.min(WINDOW_SAMPLES, nSamples - windowStart);
+                    inFlight.add(executor.submit(() -> source.transcribe(windowStart, windowLength)));
+                }
+                text = await(inFlight.poll());
+            }
+            if (text == null) {
+                text = "";
+            }
+
+            String segment = stitch(transcript, text);
+            transcript.append(segment);
+            long startMs = toMs(compacted == null ? start : compacted.toOriginal(start));
+            long endMs = toMs(compacted == null ? start + length : compacted.toOriginalEnd(start + length));
+            Log.d(TAG, "Window " + index + " [" + startMs + ", " + endMs + ") ms: " + segment);
+            if (listener != null) {
+                listener.onSegmentTranscribed(index, startMs, endMs, segment);
+            }
+        }
+
+        // Windows queued past a cancel are dropped; running ones finish on their own
+        for (Future<String> future : inFlight) {
+            future.cancel(false);
+        }
+        return transcript.toString();
+    }
+
+    private String await(Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mCancelled = true;
+            Log.e(TAG, "Transcription interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Window transcription failed", e.getCause());
+        }
+        return null;
+    }
+
+    private static void notifyFile(BatchListener listener, int index, String wavePath, String text) {
+        if (listener != null) {
+            listener.onFileTranscribed(index, wavePath, text);
+        }
+    }
+
+    private synchronized ExecutorService getExecutor(int nThreads) {
+        if (mExecutor == null || mExecutorThreads < nThreads) {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+            }
+            AtomicInteger threadCount = new AtomicInteger();
+            mExecutor = Executors.newFixedThreadPool(nThreads, runnable -> {
+                Thread thread = new Thread(runnable, "LongFormWorker-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            mExecutorThreads = nThreads;
+        }
+        return mExecutor;
+    }
+
+    // Remove from the start of segment the longest run of words that repeats the end of previous
+    static String stitch(CharSequence previous, String segment) {
+        List<String> tail = words(previous, Math.max(0, previous.length() - 32 * MAX_STITCH_WORDS), null);
+        List<Integer> segmentStarts = new ArrayList<>();
+        List<String> head = words(segment, 0, segmentStarts);
+
+        int maxOverlap = Math.min(MAX_STITCH_WORDS, Math.min(tail.size(), head.size()));
+        for (int k = maxOverlap; k > 0; k--) {
+            if (k == 1 && head.get(0).codePointCount(0, head.get(0).length()) < MIN_SINGLE_WORD_LENGTH) {
+                break;
+            }
+            boolean match = true;
+            for (int i = 0; i < k && match; i++) {
+                match = tail.get(tail.size() - k + i).equals(head.get(i));
+            }
+            if (match) {
+                if (k == head.size()) {
+                    return "";
+                }
+                String rest = segment.substring(segmentStarts.get(k));
+                boolean joined = previous.length() > 0
+                        && isUnspaced(Character.codePointBefore(previous, previous.length()))
+                        && isUnspaced(rest.codePointAt(0));
+                return joined ? rest : " " + rest;
+            }
+        }
+        return segment;
+    }
+
+    // Whether codePoint belongs to text written without spaces between words (Chinese, Japanese,
+    // Thai, ...), including its full-width punctuation
+    static boolean isUnspaced(int codePoint) {
+        switch (Character.UnicodeScript.of(codePoint)) {
+            case HAN:
+            case HIRAGANA:
+            case KATAKANA:
+            case THAI:
+            case LAO:
+            case KHMER:
+            case MYANMAR:
+            case TIBETAN:
+                return true;
+            default:
+                Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+                return block == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION
+                        || block == Character.UnicodeBlock.HALFWIDTH_AND_FULLWIDTH_FORMS;
+        }
+    }
+
+    // Normalised words of text[from..]; start offsets of the raw words are added to starts if given.
+    // In text written without spaces every letter counts as a word, so overlaps are still found.
+    static List<String> words(CharSequence text, int from, List<Integer> starts) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        int wordStart = -1;
+        for (int i = from; i <= text.length(); ) {
+            int c = i < text.length() ? Character.codePointAt(text, i) : ' ';
+            boolean letterWord = Character.isLetter(c) && isUnspaced(c);
+            if (Character.isWhitespace(c) || letterWord) {
+                if (wordStart >= 0) {
+                    if (word.length() > 0) {
+                        words.add(word.toString());
+                        if (starts != null) {
+                            starts.add(wordStart);
+                        }
+                    }
+                    word.setLength(0);
+                    wordStart = -1;
+                }
+                if (letterWord) {
+                    words.add(new String(Character.toChars(c)));
+                    if (starts != null) {
+                        starts.add(i);
+                    }
+                }
+            } else {
+                if (wordStart < 0) {
+                    wordStart = i;
+                }
+                if (Character.isLetterOrDigit(c)) {
+                    word.appendCodePoint(c);
+                }
+            }
+            i += i < text.length() ? Character.charCount(c) : 1;
+        }
+
+        // Case and punctuation differ between windows for the same words
+        for (int i = 0; i < words.size(); i++) {
+            words.set(i, words.get(i).toLowerCase(Locale.ROOT));
+        }
+        return words;
+    }
+
+    private static long toMs(long samples) {
+        return samples * 1000 / WhisperUtil.WHISPER_SAMPLE_RATE;
+    }
+}
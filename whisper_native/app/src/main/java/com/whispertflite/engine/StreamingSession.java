@@ -0,0 +1,278 @@
+package com.whispertflite.engine;
+
+import com.whispertflite.utils.StreamingMelExtractor;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Continuous transcription of a live stream with a rolling context window.
+// Pushed audio goes into a StreamingMelExtractor, so only new frames are computed. Every cadence
+// seconds of new audio the whole window is transcribed again, letting later words give context to
+// earlier ones. Words are committed once the last stableRuns hypotheses agree on them (a common
+// word prefix), so text is emitted once and never retracted. Each hypothesis still covers the
+// text committed from the window, possibly split into words differently, so it is aligned against
+// that text first and only the words after it are compared and committed.
+// The window is trimmed when its hypothesis is fully stable or it reaches maxWindow seconds: the
+// remaining words are committed and the audio is dropped except for the last overlap seconds,
+// which stay as context. The overlap's words are heard again by the next runs and are removed
+// with LongFormTranscriber.stitch, as between long-form windows.
+// Not thread-safe: one session per stream, fed from one thread.
+public class StreamingSession {
+    public static final float DEFAULT_CADENCE_SECONDS = 1.0f;
+    public static final float DEFAULT_MAX_WINDOW_SECONDS = 20.0f;
+    public static final int DEFAULT_STABLE_RUNS = 2;
+
+    private static final int STITCH_CONTEXT_CHARS = 1024;
+    // Letters a partial run of committed words needs to be matched on its own when aligning
+    private static final int MIN_ALIGN_LETTERS = 6;
+
+    interface Inference {
+        // Transcribe the extractor's current window
+        String transcribe(StreamingMelExtractor melExtractor);
+    }
+
+    private final Inference mInference;
+    private final StreamingMelExtractor mMelExtractor;
+
+    private int mCadenceSamples = (int) (DEFAULT_CADENCE_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE);
+    private int mMaxWindowSamples = (int) (DEFAULT_MAX_WINDOW_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE);
+    private int mOverlapSamples = (int) (LongFormTranscriber.DEFAULT_OVERLAP_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE);
+    private int mStableRuns = DEFAULT_STABLE_RUNS;
+
+    // Everything committed so far, and the part of it committed before the window started
+    private final StringBuilder mCommitted = new StringBuilder();
+    private int mCommittedBeforeWindow = 0;
+
+    // Latest hypotheses of the window (newest last); what they commit is everything in mCommitted
+    // from mCommittedBeforeWindow on
+    private final ArrayDeque<String> mHypotheses = new ArrayDeque<>();
+    private long mSamplesSinceRun = 0;
+
+    // Newest hypothesis, null once the window is trimmed
+    private String mLastHypothesis = null;
+
+    StreamingSession(WhisperUtil whisperUtil, Inference inference) {
+        mInference = inference;
+        mMelExtractor = new StreamingMelExtractor(whisperUtil);
+    }
+
+    // Seconds of new audio between inference runs
+    public void setCadenceSeconds(float seconds) {
+        int samples = (int) (seconds * WhisperUtil.WHISPER_SAMPLE_RATE);
+        if (samples < 1) {
+            throw new IllegalArgumentException("Cadence must be positive: " + seconds);
+        }
+        mCadenceSamples = samples;
+    }
+
+    // Longest window before it is committed and trimmed, and the context kept after a trim
+    public void setWindowSeconds(float maxWindowSeconds, float overlapSeconds) {
+        int maxWindow = (int) (maxWindowSeconds * WhisperUtil.WHISPER_SAMPLE_RATE);
+        int overlap = (int) (overlapSeconds * WhisperUtil.WHISPER_SAMPLE_RATE);
+        if (maxWindow > LongFormTranscriber.WINDOW_SAMPLES || overlap < 0 || overlap >= maxWindow) {
+            throw new IllegalArgumentException("Invalid streaming window: " + maxWindowSeconds + "s, overlap " + overlapSeconds + "s");
+        }
+        mMaxWindowSamples = maxWindow;
+        mOverlapSamples = overlap;
+    }
+
+    // Number of consecutive runs that must agree before words are committed
+    public void setStableRuns(int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("Stable runs must be at least 1: " + runs);
+        }
+        mStableRuns = runs;
+    }
+
+    public void reset() {
+        mMelExtractor.reset();
+        mCommitted.setLength(0);
+        mCommittedBeforeWindow = 0;
+        mHypotheses.clear();
+        mSamplesSinceRun = 0;
+        mLastHypothesis = null;
+    }
+
+    // Full transcript committed so far
+    public String getTranscript() {
+        return mCommitted.toString();
+    }
+
+    // Push samples[offset .. offset + length); returns the text committed by this call, "" if none
+    public String push(float[] samples, int offset, int length) {
+        mMelExtractor.push(samples, offset, length);
+        mSamplesSinceRun += length;
+        if (mSamplesSinceRun < mCadenceSamples) {
+            return "";
+        }
+        mSamplesSinceRun = 0;
+
+        int start = mCommitted.length();
+        String hypothesis = transcribeWindow();
+        mHypotheses.addLast(hypothesis);
+        while (mHypotheses.size() > mStableRuns) {
+            mHypotheses.removeFirst();
+        }
+
+        // Compare the hypotheses only past what the window has committed
+        List<String> windowCommitted = LongFormTranscriber.words(mCommitted, mCommittedBeforeWindow, null);
+        List<List<String>> pending = new ArrayList<>();
+        String remainder = "";
+        List<Integer> starts = null;
+        for (String text : mHypotheses) {
+            remainder = uncommitted(windowCommitted, text);
+            starts = new ArrayList<>();
+            pending.add(LongFormTranscriber.words(remainder, 0, starts));
+        }
+        int nWords = starts.size();
+
+        int stable = mHypotheses.size() == mStableRuns ? commonPrefix(pending) : 0;
+        long windowSamples = mMelExtractor.getSampleCount() - mMelExtractor.getFirstSample();
+        boolean settled = stable == nWords && mHypotheses.size() == mStableRuns;
+
+        if (settled || windowSamples >= mMaxWindowSamples) {
+            // Finalise the window and keep only the overlap as context for the next runs
+            commit(remainder);
+            mMelExtractor.discardBefore(mMelExtractor.getSampleCount() - mOverlapSamples);
+            mCommittedBeforeWindow = mCommitted.length();
+            mHypotheses.clear();
+            mLastHypothesis = null;
+            return mCommitted.substring(start);
+        }
+        if (stable > 0) {
+            commit(remainder.substring(0, stable < nWords ? starts.get(stable) : remainder.length()));
+        }
+        mLastHypothesis = hypothesis;
+        return mCommitted.substring(start);
+    }
+
+    // Commit everything heard so far, e.g. when the stream ends; returns the text committed.
+    // The next push starts a new window after the committed transcript.
+    public String flush() {
+        int start = mCommitted.length();
+        if (mSamplesSinceRun == 0) {
+            // No audio since the last run: its hypothesis is final, or was already committed
+            if (mLastHypothesis != null) {
+                commitRemainder(mLastHypothesis);
+            }
+        } else if (mMelExtractor.getFrameCount() > 0) {
+            commitRemainder(transcribeWindow());
+        }
+
+        mMelExtractor.reset();
+        mCommittedBeforeWindow = mCommitted.length();
+        mHypotheses.clear();
+        mSamplesSinceRun = 0;
+        mLastHypothesis = null;
+        return mCommitted.substring(start);
+    }
+
+    // Hypothesis for the window with the words that repeat text committed before it removed
+    private String transcribeWindow() {
+        String text = mInference.transcribe(mMelExtractor);
+        if (text == null) {
+            return "";
+        }
+        if (mCommittedBeforeWindow == 0) {
+            return text;
+        }
+        // stitch only looks at the last words, so only the tail of a long transcript is passed
+        int from = Math.max(0, mCommittedBeforeWindow - STITCH_CONTEXT_CHARS);
+        return LongFormTranscriber.stitch(mCommitted.subSequence(from, mCommittedBeforeWindow), text);
+    }
+
+    private void commitRemainder(String hypothesis) {
+        commit(uncommitted(LongFormTranscriber.words(mCommitted, mCommittedBeforeWindow, null), hypothesis));
+    }
+
+    // Append text to the transcript
+    private void commit(String text) {
+        text = text.trim();
+        if (text.isEmpty()) {
+            return;
+        }
+
+        // Keep exactly one space between committed parts, none within text written without spaces
+        int length = mCommitted.length();
+        if (length > 0 && !Character.isWhitespace(mCommitted.charAt(length - 1))
+                && !(LongFormTranscriber.isUnspaced(Character.codePointBefore(mCommitted, length))
+                && LongFormTranscriber.isUnspaced(text.codePointAt(0)))) {
+            mCommitted.append(' ');
+        }
+        mCommitted.append(text);
+    }
+
+    // Part of hypothesis after the words the window has committed. Whisper may split the same
+    // audio into words differently from run to run ("the cat" / "thecat"), so the words are
+    // matched on their letters: the hypothesis is cut after the longest run of committed words
+    // ending the committed text that it contains, ending on a word boundary. If none is found, as
+    // many letters as were committed are skipped.
+    static String uncommitted(List<String> committed, String hypothesis) {
+        if (committed.isEmpty()) {
+            return hypothesis;
+        }
+        List<Integer> starts = new ArrayList<>();
+        List<String> words = LongFormTranscriber.words(hypothesis, 0, starts);
+        StringBuilder letters = new StringBuilder();
+        int[] ends = new int[words.size()];
+        for (int i = 0; i < words.size(); i++) {
+            letters.append(words.get(i));
+            ends[i] = letters.length();
+        }
+
+        int cut = -1;
+        StringBuilder tail = new StringBuilder();
+        for (int k = 1; k <= committed.size(); k++) {
+            tail.insert(0, committed.get(committed.size() - k));
+            if (tail.length() < MIN_ALIGN_LETTERS && k < committed.size()) {
+                continue;
+            }
+            int found = wordEndOf(letters.toString(), ends, tail.toString());
+            if (found < 0) {
+                break; // a longer run contains this one, so it cannot match either
+            }
+            cut = found;
+        }
+        if (cut < 0) {
+            int committedLetters = 0;
+            for (String word : committed) {
+                committedLetters += word.length();
+            }
+            cut = 0;
+            while (cut < ends.length && ends[cut] <= committedLetters) {
+                cut++;
+            }
+        }
+        return cut < starts.size() ? hypothesis.substring(starts.get(cut)) : "";
+    }
+
+    // Number of words up to the first occurrence of run in letters that ends on a word end, -1 if
+    // there is none
+    private static int wordEndOf(String letters, int[] ends, String run) {
+        for (int at = letters.indexOf(run); at >= 0; at = letters.indexOf(run, at + 1)) {
+            int end = at + run.length();
+            for (int i = 0; i < ends.length && ends[i] <= end; i++) {
+                if (ends[i] == end) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Number of leading words shared by all the word lists
+    private static int commonPrefix(List<List<String>> hypotheses) {
+        int prefix = Integer.MAX_VALUE;
+        List<String> first = hypotheses.get(0);
+        for (List<String> words : hypotheses) {
+            int n = 0;
+            while (n < words.size() && n < first.size() && words.get(n).equals(first.get(n))) {
+                n++;
+            }
+            prefix = Math.min(prefix, n);
+        }
+        return prefix == Integer.MAX_VALUE ? 0 : prefix;
+    }
+}
@@ -8,5 +8,16 @@ public interface WhisperEngine {
     void deinitialize();
     String transcribeFile(String wavePath);
     String transcribeBuffer(float[] samples);
+    // Live audio, samples[offset .. offset + length) of a stream fed chunk by chunk; returns the
+    // text for this chunk (engines with a streaming session return newly committed text)
+    String transcribeBuffer(float[] samples, int offset, int length);
+    // End of an utterance or of the stream: returns the text transcribeBuffer still holds back
+    String flushBuffer();
+    // Start of a new stream: forget what transcribeBuffer kept from the previous one
+    void resetBuffer();
+    // Transcribe one window of at most 30 seconds, samples[offset .. offset + length)
+    String transcribeWindow(float[] samples, int offset, int length);
     void setConvertToSimplifiedChinese(boolean convert);
+    // Number of transcribeWindow/transcribeFile calls that can run concurrently
+    int getParallelism();
 }
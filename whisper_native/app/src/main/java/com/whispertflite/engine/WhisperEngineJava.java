@@ -9,19 +9,19 @@ import android.util.Log;
 import com.whispertflite.utils.WaveUtil;
 import com.whispertflite.utils.WhisperUtil;
 import com.whispertflite.utils.ChineseConverter;
+import com.whispertflite.utils.StreamingMelExtractor;
+import com.whispertflite.utils.TokenDecoder;
 
-import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.Tensor;
 //import org.tensorflow.lite.gpu.CompatibilityList;
 //import org.tensorflow.lite.gpu.GpuDelegate;
 //import org.tensorflow.lite.nnapi.NnApiDelegate;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 
 public class WhisperEngineJava implements WhisperEngine {
@@ -31,13 +31,37 @@ public class WhisperEngineJava implements WhisperEngine {
 
     private final Context mContext;
     private boolean mIsInitialized = false;
-    private Interpreter mInterpreter = null;
 //    private GpuDelegate gpuDelegate;
 
+    // Interpreters sharing the memory-mapped model, each with persistent I/O buffers that the mel
+    // extractor writes straight into. By default one instance gets every core.
+    private InterpreterPool mInterpreterPool = null;
+    private int mPoolInstances = 1;
+    private int mPoolThreadsPerInstance = Runtime.getRuntime().availableProcessors();
+    private TokenDecoder[] mTokenDecoders = null; // one per pool slot
+
+    // Live transcription state for transcribeBuffer, created on first use
+    private StreamingSession mStreamingSession = null;
+
     public WhisperEngineJava(Context context) {
         mContext = context;
     }
 
+    // Use instances interpreters with threadsPerInstance threads each, applied by initialize().
+    // Several smaller instances let long-form windows and batch files run concurrently.
+    public void setInterpreterPool(int instances, int threadsPerInstance) {
+        if (instances < 1 || threadsPerInstance < 1) {
+            throw new IllegalArgumentException("Invalid interpreter pool: " + instances + " x " + threadsPerInstance);
+        }
+        mPoolInstances = instances;
+        mPoolThreadsPerInstance = threadsPerInstance;
+    }
+
+    @Override
+    public int getParallelism() {
+        return mInterpreterPool != null ? mInterpreterPool.size() : 1;
+    }
+
     @Override
     public boolean isInitialized() {
         return mIsInitialized;
@@ -62,32 +86,103 @@ public class WhisperEngineJava implements WhisperEngine {
         return mIsInitialized;
     }
 
-    // Unload the model by closing the interpreter
+    // Unload the model by closing the interpreters
     @Override
     public void deinitialize() {
-        if (mInterpreter != null) {
-            mInterpreter.close();
-            mInterpreter = null; // Optional: Set to null to avoid accidental reuse
+        if (mInterpreterPool != null) {
+            mInterpreterPool.close();
+            mInterpreterPool = null; // Optional: Set to null to avoid accidental reuse
         }
+        mTokenDecoders = null;
+
+        // Stop the mel worker pool
+        mWhisperUtil.shutdown();
     }
 
     @Override
     public String transcribeFile(String wavePath) {
-        // Calculate Mel spectrogram
-        Log.d(TAG, "Calculating Mel spectrogram...");
-        float[] melSpectrogram = getMelSpectrogram(wavePath);
-        Log.d(TAG, "Mel spectrogram is calculated...!");
+        // Get samples in PCM_FLOAT format
+        float[] samples = WaveUtil.getSamples(wavePath);
+        return transcribeWindow(samples, 0, samples.length);
+    }
 
-        // Perform inference
-        String result = runInference(melSpectrogram);
-        Log.d(TAG, "Inference is executed...!");
+    @Override
+    public String transcribeBuffer(float[] samples) {
+        return transcribeBuffer(samples, 0, samples.length);
+    }
 
-        return result;
+    // Live audio: consecutive calls continue one stream, transcribed by the streaming session with
+    // a rolling context window. Returns the text committed by this call, "" if none yet.
+    @Override
+    public String transcribeBuffer(float[] samples, int offset, int length) {
+        return getStreamingSession().push(samples, offset, length);
     }
 
     @Override
-    public String transcribeBuffer(float[] samples) {
-        return null;
+    public String flushBuffer() {
+        return getStreamingSession().flush();
+    }
+
+    @Override
+    public void resetBuffer() {
+        getStreamingSession().reset();
+    }
+
+    // Session behind transcribeBuffer, for its cadence/window settings, flush() and reset()
+    public synchronized StreamingSession getStreamingSession() {
+        if (mStreamingSession == null) {
+            mStreamingSession = new StreamingSession(mWhisperUtil, this::transcribeMel);
+        }
+        return mStreamingSession;
+    }
+
+    // Thread-safe: concurrent calls run on different pool slots, or wait for a free one
+    @Override
+    public String transcribeWindow(float[] samples, int offset, int length) {
+        InterpreterPool.Slot slot;
+        try {
+            slot = mInterpreterPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while waiting for an interpreter", e);
+            return null;
+        }
+
+        try {
+            // Calculate Mel spectrogram
+            Log.d(TAG, "Calculating Mel spectrogram...");
+            if (!computeMelSpectrogram(samples, offset, length, slot.inputFloats)) {
+                return null; // interrupted, the input is incomplete
+            }
+            Log.d(TAG, "Mel spectrogram is calculated...!");
+
+            // Perform inference
+            String result = runInference(slot);
+            Log.d(TAG, "Inference is executed...!");
+
+            return result;
+        } finally {
+            mInterpreterPool.release(slot);
+        }
+    }
+
+    // Transcribe the window held by a streaming mel extractor, normalised straight into the input
+    private String transcribeMel(StreamingMelExtractor melExtractor) {
+        InterpreterPool.Slot slot;
+        try {
+            slot = mInterpreterPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while waiting for an interpreter", e);
+            return null;
+        }
+
+        try {
+            melExtractor.getInputTensor(slot.inputFloats);
+            return runInference(slot);
+        } finally {
+            mInterpreterPool.release(slot);
+        }
     }
 
     @Override
@@ -105,7 +200,7 @@ public class WhisperEngineJava implements WhisperEngine {
 
         // Set the number of threads for inference
         Interpreter.Options options = new Interpreter.Options();
-        options.setNumThreads(Runtime.getRuntime().availableProcessors());
+        options.setNumThreads(mPoolThreadsPerInstance);
 //        options.setUseXNNPACK(true);
 
 //        boolean isNNAPI = true;
@@ -146,85 +241,55 @@ public class WhisperEngineJava implements WhisperEngine {
 //            options.addDelegate(gpuDelegate);
 //        }
 
-        mInterpreter = new Interpreter(tfliteModel, options);
+        // All instances share the mapped model; I/O buffers are allocated once per instance
+        mInterpreterPool = new InterpreterPool(tfliteModel, options, mPoolInstances);
+        mTokenDecoders = new TokenDecoder[mPoolInstances];
+        for (int i = 0; i < mPoolInstances; i++) {
+            mTokenDecoders[i] = new TokenDecoder(mWhisperUtil);
+        }
+        Log.d(TAG, "Interpreter pool: " + mPoolInstances + " x " + mPoolThreadsPerInstance + " threads");
     }
 
-    private float[] getMelSpectrogram(String wavePath) {
-        // Get samples in PCM_FLOAT format
-        float[] samples = WaveUtil.getSamples(wavePath);
-
+    // Compute the mel spectrogram of one window directly into the interpreter input buffer
+    private boolean computeMelSpectrogram(float[] samples, int offset, int length, FloatBuffer dst) {
+        // The model always sees 30 seconds; the tail past the real samples is zero padding
         int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
-        float[] inputSamples = new float[fixedInputSize];
-        int copyLength = Math.min(samples.length, fixedInputSize);
-        System.arraycopy(samples, 0, inputSamples, 0, copyLength);
+        int nSamples = Math.min(length, fixedInputSize);
 
         int cores = Runtime.getRuntime().availableProcessors();
-        return mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, cores);
-    }
-
-    private String runInference(float[] inputData) {
-        // Create input tensor
-        Tensor inputTensor = mInterpreter.getInputTensor(0);
-        TensorBuffer inputBuffer = TensorBuffer.createFixedSize(inputTensor.shape(), inputTensor.dataType());
-//        printTensorDump("Input Tensor Dump ===>", inputTensor);
-
-        // Create output tensor
-        Tensor outputTensor = mInterpreter.getOutputTensor(0);
-        TensorBuffer outputBuffer = TensorBuffer.createFixedSize(outputTensor.shape(), DataType.FLOAT32);
-//        printTensorDump("Output Tensor Dump ===>", outputTensor);
-
-        // Load input data
-        int inputSize = inputTensor.shape()[0] * inputTensor.shape()[1] * inputTensor.shape()[2] * Float.BYTES;
-        ByteBuffer inputBuf = ByteBuffer.allocateDirect(inputSize);
-        inputBuf.order(ByteOrder.nativeOrder());
-        for (float input : inputData) {
-            inputBuf.putFloat(input);
-        }
+        return mWhisperUtil.getMelSpectrogram(samples, offset, nSamples, fixedInputSize, cores, dst);
+    }
+
+    private String runInference(InterpreterPool.Slot slot) {
+//        printTensorDump("Input Tensor Dump ===>", slot.interpreter.getInputTensor(0));
+//        printTensorDump("Output Tensor Dump ===>", slot.interpreter.getOutputTensor(0));
 
         // To test mel data as a input directly
 //        try {
 //            byte[] bytes = Files.readAllBytes(Paths.get("/data/user/0/com.example.tfliteaudio/files/mel_spectrogram.bin"));
-//            inputBuf = ByteBuffer.wrap(bytes);
+//            slot.inputBuffer.rewind();
+//            slot.inputBuffer.put(bytes);
 //        } catch (IOException e) {
 //            throw new RuntimeException(e);
 //        }
 
-        inputBuffer.loadBuffer(inputBuf);
-
 //        Log.d(TAG, "Before inference...");
         // Run inference
-        mInterpreter.run(inputBuffer.getBuffer(), outputBuffer.getBuffer());
+        slot.inputBuffer.rewind();
+        slot.outputBuffer.rewind();
+        slot.interpreter.run(slot.inputBuffer, slot.outputBuffer);
 //        Log.d(TAG, "After inference...");
 
-        // Retrieve the results
-        int outputLen = outputBuffer.getIntArray().length;
-        Log.d(TAG, "output_len: " + outputLen);
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < outputLen; i++) {
-            int token = outputBuffer.getBuffer().getInt();
-            if (token == mWhisperUtil.getTokenEOT())
-                break;
-
-            // Get word for token and Skip additional token
-            if (token < mWhisperUtil.getTokenEOT()) {
-                String word = mWhisperUtil.getWordFromToken(token);
-                if (mConvertToSimplifiedChinese) {
-                    word = ChineseConverter.toSimplified(word);
-                }
-                result.append(word);
-            } else {
-                if (token == mWhisperUtil.getTokenTranscribe())
-                    Log.d(TAG, "It is Transcription...");
-
-                if (token == mWhisperUtil.getTokenTranslate())
-                    Log.d(TAG, "It is Translation...");
-
-                String word = mWhisperUtil.getWordFromToken(token);
-                Log.d(TAG, "Skipping token: " + token + ", word: " + word);
-            }
-        }
+        // Decode the tokens in place from the output buffer
+        TokenDecoder tokenDecoder = mTokenDecoders[slot.index];
+        tokenDecoder.reset();
+        tokenDecoder.append(slot.outputTokens, slot.outputTokens.capacity());
 
-        return result.toString();
+        String result = tokenDecoder.decode();
+        if (mConvertToSimplifiedChinese) {
+            result = ChineseConverter.toSimplified(result);
+        }
+        return result;
     }
 
     private void printTensorDump(String message, Tensor tensor) {
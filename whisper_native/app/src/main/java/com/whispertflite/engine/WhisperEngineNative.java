@@ -3,6 +3,14 @@ package com.whispertflite.engine;
 import android.content.Context;
 import android.util.Log;
 import com.whispertflite.utils.ChineseConverter;
+import com.whispertflite.utils.TokenDecoder;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 public class WhisperEngineNative implements WhisperEngine {
     private final String TAG = "WhisperEngineNative";
@@ -12,6 +20,12 @@ public class WhisperEngineNative implements WhisperEngine {
     private boolean mIsInitialized = false;
     private boolean mConvertToSimplifiedChinese = false;
 
+    // Native code returns token ids; they are decoded here with the same vocab and byte-level
+    // detokenizer as WhisperEngineJava
+    private final WhisperUtil mWhisperUtil = new WhisperUtil();
+    private final TokenDecoder mTokenDecoder = new TokenDecoder(mWhisperUtil);
+    private IntBuffer mTokens = null; // direct, written by native code
+
     public WhisperEngineNative(Context context) {
         mContext = context;
         nativePtr = createTFLiteEngine();
@@ -23,33 +37,112 @@ public class WhisperEngineNative implements WhisperEngine {
     }
 
     @Override
-    public boolean initialize(String modelPath, String vocabPath, boolean multilingual) {
+    public boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException {
         int ret = loadModel(modelPath, multilingual);
+        int maxTokens = ret == 0 ? getMaxTokens(nativePtr) : 0;
+        if (maxTokens <= 0) {
+            Log.d(TAG, "Failed to load model..." + modelPath);
+            mIsInitialized = false;
+            return false;
+        }
         Log.d(TAG, "Model is loaded..." + modelPath);
 
-        mIsInitialized = true;
-        return true;
+        ByteBuffer tokenBuffer = ByteBuffer.allocateDirect(maxTokens * Integer.BYTES);
+        tokenBuffer.order(ByteOrder.nativeOrder());
+        mTokens = tokenBuffer.asIntBuffer();
+
+        // Load filters and vocab for decoding
+        mIsInitialized = mWhisperUtil.loadFiltersAndVocab(multilingual, vocabPath);
+        if (!mIsInitialized) {
+            Log.d(TAG, "Failed to load model or vocab...");
+        }
+        return mIsInitialized;
     }
 
     @Override
     public void deinitialize() {
         freeModel();
+        mTokens = null;
     }
 
     @Override
     public String transcribeBuffer(float[] samples) {
-        String result = transcribeBuffer(nativePtr, samples);
-        if (mConvertToSimplifiedChinese && result != null) {
-            return ChineseConverter.toSimplified(result);
+        return transcribeWindow(samples, 0, samples.length);
+    }
+
+    // Each chunk is transcribed on its own, padded to 30 seconds
+    @Override
+    public String transcribeBuffer(float[] samples, int offset, int length) {
+        return transcribeWindow(samples, offset, length);
+    }
+
+    // Nothing is held back between chunks
+    @Override
+    public String flushBuffer() {
+        return "";
+    }
+
+    @Override
+    public void resetBuffer() {
+    }
+
+    // Native code copies the window (at most 30 seconds) out of the array and leaves it unpinned
+    @Override
+    public String transcribeWindow(float[] samples, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > samples.length) {
+            throw new IndexOutOfBoundsException("Window [" + offset + ", " + (offset + length) + ") of " + samples.length);
         }
-        return result;
+        return decode(transcribeBuffer(nativePtr, samples, offset, length, mTokens, 0, tokenCapacity()));
+    }
+
+    // Token ids of one window written into tokens (a native-order direct buffer) for callers that
+    // stream or post-process tokens themselves, from its position up to its limit. Returns the
+    // number written, -1 on failure; the position is not advanced.
+    public int transcribeWindowTokens(float[] samples, int offset, int length, IntBuffer tokens) {
+        if (offset < 0 || length < 0 || offset + length > samples.length) {
+            throw new IndexOutOfBoundsException("Window [" + offset + ", " + (offset + length) + ") of " + samples.length);
+        }
+        if (!tokens.isDirect() || tokens.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("Tokens must be a native-order direct buffer");
+        }
+        return transcribeBuffer(nativePtr, samples, offset, length, tokens, tokens.position(), tokens.remaining());
+    }
+
+    // Transcribe length samples starting at the buffer's position, read in place by native code.
+    // samples must be a direct buffer in native byte order, e.g. ByteBuffer.allocateDirect(..)
+    // .order(ByteOrder.nativeOrder()).asFloatBuffer().
+    public String transcribeBuffer(FloatBuffer samples, int length) {
+        if (!samples.isDirect() || samples.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("Samples must be a native-order direct buffer");
+        }
+        if (length < 0 || length > samples.remaining()) {
+            throw new IndexOutOfBoundsException("Length " + length + " exceeds " + samples.remaining() + " remaining samples");
+        }
+        return decode(transcribeDirectBuffer(nativePtr, samples, samples.position(), length, mTokens, 0, tokenCapacity()));
     }
 
     @Override
     public String transcribeFile(String waveFile) {
-        String result = transcribeFile(nativePtr, waveFile);
-        if (mConvertToSimplifiedChinese && result != null) {
-            return ChineseConverter.toSimplified(result);
+        return decode(transcribeFile(nativePtr, waveFile, mTokens, 0, tokenCapacity()));
+    }
+
+    // 0 before a model is loaded, so native calls fail instead of writing anywhere
+    private int tokenCapacity() {
+        return mTokens == null ? 0 : mTokens.capacity();
+    }
+
+    // Decode the first nTokens ids of mTokens, stopping at EOT
+    private String decode(int nTokens) {
+        if (nTokens < 0) {
+            return "";
+        }
+
+        mTokenDecoder.reset();
+        mTokenDecoder.append(mTokens, nTokens);
+
+        String result = mTokenDecoder.decode();
+        if (mConvertToSimplifiedChinese) {
+            result = ChineseConverter.toSimplified(result);
         }
         return result;
     }
@@ -61,6 +154,12 @@ public class WhisperEngineNative implements WhisperEngine {
         // setConvertToSimplifiedChinese(nativePtr, convert);
     }
 
+    // One native interpreter, calls are serialised by the caller
+    @Override
+    public int getParallelism() {
+        return 1;
+    }
+
     private int loadModel(String modelPath, boolean isMultilingual) {
         return loadModel(nativePtr, modelPath, isMultilingual);
     }
@@ -77,6 +176,9 @@ public class WhisperEngineNative implements WhisperEngine {
     private native long createTFLiteEngine();
     private native int loadModel(long nativePtr, String modelPath, boolean isMultilingual);
     private native void freeModel(long nativePtr);
-    private native String transcribeBuffer(long nativePtr, float[] samples);
-    private native String transcribeFile(long nativePtr, String waveFile);
+    private native int getMaxTokens(long nativePtr);
+    // Token ids are written to tokens[tokensOffset .. tokensOffset + tokensCount)
+    private native int transcribeBuffer(long nativePtr, float[] samples, int offset, int length, IntBuffer tokens, int tokensOffset, int tokensCount);
+    private native int transcribeDirectBuffer(long nativePtr, FloatBuffer samples, int offset, int length, IntBuffer tokens, int tokensOffset, int tokensCount);
+    private native int transcribeFile(long nativePtr, String waveFile, IntBuffer tokens, int tokensOffset, int tokensCount);
 }
@@ -0,0 +1,232 @@
+package com.whispertflite.utils;
+
+// Precomputed plan for a fixed-size complex FFT.
+// Twiddle factors and the digit-reversal permutation are built once in the constructor,
+// so a transform does no trig and allocates nothing. The plan itself is immutable and can be
+// shared by any number of threads; each thread passes in its own scratch/output arrays.
+// Supported sizes are products of 2, 4 and 5 (e.g. WHISPER_N_FFT = 400 = 4 * 4 * 5 * 5).
+public class FftPlan {
+    private static final float COS_1 = (float) Math.cos(2.0 * Math.PI / 5.0);
+    private static final float COS_2 = (float) Math.cos(4.0 * Math.PI / 5.0);
+    private static final float SIN_1 = (float) Math.sin(2.0 * Math.PI / 5.0);
+    private static final float SIN_2 = (float) Math.sin(4.0 * Math.PI / 5.0);
+
+    private final int n;
+    private final int[] radices;
+    private final int[] permutation;
+    private final float[] cosTable;
+    private final float[] sinTable;
+
+    public FftPlan(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Invalid FFT size: " + n);
+        }
+
+        this.n = n;
+        this.radices = factorize(n);
+
+        // Digit-reversed position of every input index for the chosen radix sequence
+        permutation = new int[n];
+        for (int i = 0; i < n; i++) {
+            int pos = 0;
+            int rem = i;
+            int size = n;
+            for (int radix : radices) {
+                size /= radix;
+                pos += (rem % radix) * size;
+                rem /= radix;
+            }
+            permutation[i] = pos;
+        }
+
+        // W_n^j = cos(2*pi*j/n) - i*sin(2*pi*j/n)
+        cosTable = new float[n];
+        sinTable = new float[n];
+        for (int j = 0; j < n; j++) {
+            double theta = 2.0 * Math.PI * j / n;
+            cosTable[j] = (float) Math.cos(theta);
+            sinTable[j] = (float) Math.sin(theta);
+        }
+    }
+
+    public int getSize() {
+        return n;
+    }
+
+    // Interleaved complex input of length 2 * n -> interleaved complex output of length 2 * n.
+    // input and output must be different arrays.
+    public void forwardComplex(float[] input, float[] output) {
+        for (int i = 0; i < n; i++) {
+            int pos = 2 * permutation[i];
+            output[pos] = input[2 * i];
+            output[pos + 1] = input[2 * i + 1];
+        }
+        butterflies(output);
+    }
+
+    // In-place iterative decimation-in-time passes over digit-reversed data, innermost radix first
+    private void butterflies(float[] x) {
+        int len = 1;
+        for (int s = radices.length - 1; s >= 0; s--) {
+            int radix = radices[s];
+            int span = len;
+            len *= radix;
+            int stride = n / len;
+
+            if (radix == 2) {
+                radix2(x, span, len, stride);
+            } else if (radix == 4) {
+                radix4(x, span, len, stride);
+            } else {
+                radix5(x, span, len, stride);
+            }
+        }
+    }
+
+    private void radix2(float[] x, int span, int len, int stride) {
+        for (int block = 0; block < n; block += len) {
+            for (int k = 0; k < span; k++) {
+                int a = 2 * (block + k);
+                int b = a + 2 * span;
+
+                float wr = cosTable[k * stride];
+                float wi = sinTable[k * stride];
+                float tr = x[b] * wr + x[b + 1] * wi;
+                float ti = x[b + 1] * wr - x[b] * wi;
+
+                x[b] = x[a] - tr;
+                x[b + 1] = x[a + 1] - ti;
+                x[a] += tr;
+                x[a + 1] += ti;
+            }
+        }
+    }
+
+    private void radix4(float[] x, int span, int len, int stride) {
+        for (int block = 0; block < n; block += len) {
+            for (int k = 0; k < span; k++) {
+                int i0 = 2 * (block + k);
+                int i1 = i0 + 2 * span;
+                int i2 = i1 + 2 * span;
+                int i3 = i2 + 2 * span;
+
+                int w1 = k * stride;
+                int w2 = 2 * w1;
+                int w3 = 3 * w1;
+
+                float y0r = x[i0];
+                float y0i = x[i0 + 1];
+                float y1r = x[i1] * cosTable[w1] + x[i1 + 1] * sinTable[w1];
+                float y1i = x[i1 + 1] * cosTable[w1] - x[i1] * sinTable[w1];
+                float y2r = x[i2] * cosTable[w2] + x[i2 + 1] * sinTable[w2];
+                float y2i = x[i2 + 1] * cosTable[w2] - x[i2] * sinTable[w2];
+                float y3r = x[i3] * cosTable[w3] + x[i3 + 1] * sinTable[w3];
+                float y3i = x[i3 + 1] * cosTable[w3] - x[i3] * sinTable[w3];
+
+                float s02r = y0r + y2r;
+                float s02i = y0i + y2i;
+                float d02r = y0r - y2r;
+                float d02i = y0i - y2i;
+                float s13r = y1r + y3r;
+                float s13i = y1i + y3i;
+                float d13r = y1r - y3r;
+                float d13i = y1i - y3i;
+
+                // X1 = d02 - i * d13, X3 = d02 + i * d13
+                x[i0] = s02r + s13r;
+                x[i0 + 1] = s02i + s13i;
+                x[i1] = d02r + d13i;
+                x[i1 + 1] = d02i - d13r;
+                x[i2] = s02r - s13r;
+                x[i2 + 1] = s02i - s13i;
+                x[i3] = d02r - d13i;
+                x[i3 + 1] = d02i + d13r;
+            }
+        }
+    }
+
+    private void radix5(float[] x, int span, int len, int stride) {
+        for (int block = 0; block < n; block += len) {
+            for (int k = 0; k < span; k++) {
+                int i0 = 2 * (block + k);
+                int i1 = i0 + 2 * span;
+                int i2 = i1 + 2 * span;
+                int i3 = i2 + 2 * span;
+                int i4 = i3 + 2 * span;
+
+                int w1 = k * stride;
+                int w2 = 2 * w1;
+                int w3 = 3 * w1;
+                int w4 = 4 * w1;
+
+                float y0r = x[i0];
+                float y0i = x[i0 + 1];
+                float y1r = x[i1] * cosTable[w1] + x[i1 + 1] * sinTable[w1];
+                float y1i = x[i1 + 1] * cosTable[w1] - x[i1] * sinTable[w1];
+                float y2r = x[i2] * cosTable[w2] + x[i2 + 1] * sinTable[w2];
+                float y2i = x[i2 + 1] * cosTable[w2] - x[i2] * sinTable[w2];
+                float y3r = x[i3] * cosTable[w3] + x[i3 + 1] * sinTable[w3];
+                float y3i = x[i3 + 1] * cosTable[w3] - x[i3] * sinTable[w3];
+                float y4r = x[i4] * cosTable[w4] + x[i4 + 1] * sinTable[w4];
+                float y4i = x[i4 + 1] * cosTable[w4] - x[i4] * sinTable[w4];
+
+                float t1r = y1r + y4r;
+                float t1i = y1i + y4i;
+                float t2r = y2r + y3r;
+                float t2i = y2i + y3i;
+                float t3r = y1r - y4r;
+                float t3i = y1i - y4i;
+                float t4r = y2r - y3r;
+                float t4i = y2i - y3i;
+
+                float a1r = y0r + COS_1 * t1r + COS_2 * t2r;
+                float a1i = y0i + COS_1 * t1i + COS_2 * t2i;
+                float a2r = y0r + COS_2 * t1r + COS_1 * t2r;
+                float a2i = y0i + COS_2 * t1i + COS_1 * t2i;
+
+                float b1r = SIN_1 * t3r + SIN_2 * t4r;
+                float b1i = SIN_1 * t3i + SIN_2 * t4i;
+                float b2r = SIN_2 * t3r - SIN_1 * t4r;
+                float b2i = SIN_2 * t3i - SIN_1 * t4i;
+
+                // X1/X4 = a1 -/+ i * b1, X2/X3 = a2 -/+ i * b2
+                x[i0] = y0r + t1r + t2r;
+                x[i0 + 1] = y0i + t1i + t2i;
+                x[i1] = a1r + b1i;
+                x[i1 + 1] = a1i - b1r;
+                x[i4] = a1r - b1i;
+                x[i4 + 1] = a1i + b1r;
+                x[i2] = a2r + b2i;
+                x[i2 + 1] = a2i - b2r;
+                x[i3] = a2r - b2i;
+                x[i3 + 1] = a2i + b2r;
+            }
+        }
+    }
+
+    // Split n into radix-4 stages first, then radix 2 and radix 5
+    private static int[] factorize(int n) {
+        int[] factors = new int[32];
+        int count = 0;
+        int rem = n;
+        while (rem % 4 == 0) {
+            factors[count++] = 4;
+            rem /= 4;
+        }
+        while (rem % 2 == 0) {
+            factors[count++] = 2;
+            rem /= 2;
+        }
+        while (rem % 5 == 0) {
+            factors[count++] = 5;
+            rem /= 5;
+        }
+        if (rem != 1) {
+            throw new IllegalArgumentException("FFT size must be a product of 2, 4 and 5: " + n);
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(factors, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,180 @@
+package com.whispertflite.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Memory-mappable filters + vocab file.
+// Layout (little-endian, every block 4-byte aligned, filter block 16-byte aligned):
+//   header      int magic 'WVMF', version, nMel, nFft, nVocab, filtersOffset, tokenOffsetsOffset,
+//               tokenBytesOffset, tokenBytesLength
+//   filters     float32[nMel * nFft]
+//   offsets     int32[nVocab + 1], token i is tokenBytes[offsets[i] .. offsets[i + 1])
+//   tokenBytes  raw token bytes, no separators
+// The legacy USEN (Java) and WSPR (native) files are length-prefixed and must be parsed from the
+// start; they are converted once into this format and the converted copy is mapped afterwards.
+public class FiltersVocabFile {
+    private static final String TAG = "FiltersVocabFile";
+
+    public static final int MAGIC = 0x464d5657; // 'WVMF'
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".wvmf";
+
+    private static final int MAGIC_USEN = 0x5553454e;
+    private static final int MAGIC_WSPR = 0x57535052;
+
+    // Header field offsets
+    public static final int HEADER_VERSION = 4;
+    public static final int HEADER_N_MEL = 8;
+    public static final int HEADER_N_FFT = 12;
+    public static final int HEADER_N_VOCAB = 16;
+    public static final int HEADER_FILTERS_OFFSET = 20;
+    public static final int HEADER_TOKEN_OFFSETS_OFFSET = 24;
+    public static final int HEADER_TOKEN_BYTES_OFFSET = 28;
+    public static final int HEADER_TOKEN_BYTES_LENGTH = 32;
+    private static final int HEADER_SIZE = 36;
+
+    // Map a filters/vocab file in the current format. Legacy files are converted first; the
+    // converted copy is cached next to the original (or kept in memory if that is not writable).
+    // Returns null if the file is not a filters/vocab file.
+    public static ByteBuffer load(String path) throws IOException {
+        ByteBuffer buf = map(path);
+        int magic = buf.getInt(0);
+        if (magic == MAGIC) {
+            int version = buf.getInt(HEADER_VERSION);
+            if (version != VERSION) {
+                Log.d(TAG, "Unsupported filters/vocab version " + version + ", " + path);
+                return null;
+            }
+            return buf;
+        }
+
+        buf.order(ByteOrder.nativeOrder());
+        magic = buf.getInt(0);
+        if (magic != MAGIC_USEN && magic != MAGIC_WSPR) {
+            Log.d(TAG, "Invalid vocab file (bad magic: " + magic + "), " + path);
+            return null;
+        }
+
+        File legacy = new File(path);
+        File converted = new File(path + EXTENSION);
+        if (converted.exists() && converted.lastModified() >= legacy.lastModified()) {
+            ByteBuffer cached = map(converted.getPath());
+            if (cached.getInt(0) == MAGIC && cached.getInt(HEADER_VERSION) == VERSION) {
+                return cached;
+            }
+        }
+
+        Log.d(TAG, "Converting legacy vocab file " + path);
+        ByteBuffer out = convert(buf);
+        try {
+            write(out, converted);
+            return map(converted.getPath());
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to cache converted vocab file, using it from memory: " + e.getMessage());
+            return out;
+        }
+    }
+
+    // Convert a legacy USEN/WSPR file into the current format
+    public static void convert(String legacyPath, String outPath) throws IOException {
+        ByteBuffer buf = map(legacyPath);
+        buf.order(ByteOrder.nativeOrder());
+        write(convert(buf), new File(outPath));
+    }
+
+    // Convert a legacy buffer (native byte order, magic at position 0)
+    public static ByteBuffer convert(ByteBuffer legacy) throws IOException {
+        int magic = legacy.getInt(0);
+        if (magic != MAGIC_USEN && magic != MAGIC_WSPR) {
+            throw new IOException("Invalid vocab file (bad magic: " + magic + ")");
+        }
+
+        int nMel = legacy.getInt(4);
+        int nFft = legacy.getInt(8);
+        int legacyFilters = 12;
+        int legacyVocab = legacyFilters + nMel * nFft * Float.BYTES;
+        int nVocab = legacy.getInt(legacyVocab);
+
+        int tokenBytesLength = 0;
+        int pos = legacyVocab + Integer.BYTES;
+        for (int i = 0; i < nVocab; i++) {
+            int len = legacy.getInt(pos);
+            tokenBytesLength += len;
+            pos += Integer.BYTES + len;
+        }
+
+        int filtersOffset = align(HEADER_SIZE, 16);
+        int tokenOffsetsOffset = filtersOffset + nMel * nFft * Float.BYTES;
+        int tokenBytesOffset = tokenOffsetsOffset + (nVocab + 1) * Integer.BYTES;
+
+        ByteBuffer out = ByteBuffer.allocate(tokenBytesOffset + tokenBytesLength);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(0, MAGIC);
+        out.putInt(HEADER_VERSION, VERSION);
+        out.putInt(HEADER_N_MEL, nMel);
+        out.putInt(HEADER_N_FFT, nFft);
+        out.putInt(HEADER_N_VOCAB, nVocab);
+        out.putInt(HEADER_FILTERS_OFFSET, filtersOffset);
+        out.putInt(HEADER_TOKEN_OFFSETS_OFFSET, tokenOffsetsOffset);
+        out.putInt(HEADER_TOKEN_BYTES_OFFSET, tokenBytesOffset);
+        out.putInt(HEADER_TOKEN_BYTES_LENGTH, tokenBytesLength);
+
+        for (int i = 0; i < nMel * nFft; i++) {
+            out.putFloat(filtersOffset + i * Float.BYTES, legacy.getFloat(legacyFilters + i * Float.BYTES));
+        }
+
+        pos = legacyVocab + Integer.BYTES;
+        int offset = 0;
+        for (int i = 0; i < nVocab; i++) {
+            int len = legacy.getInt(pos);
+            pos += Integer.BYTES;
+
+            out.putInt(tokenOffsetsOffset + i * Integer.BYTES, offset);
+            for (int k = 0; k < len; k++) {
+                out.put(tokenBytesOffset + offset + k, legacy.get(pos + k));
+            }
+            pos += len;
+            offset += len;
+        }
+        out.putInt(tokenOffsetsOffset + nVocab * Integer.BYTES, offset);
+
+        return out;
+    }
+
+    private static ByteBuffer map(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        }
+    }
+
+    // Write through a temporary file so a half-written cache is never mapped
+    private static void write(ByteBuffer buf, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tmp)) {
+            ByteBuffer src = buf.duplicate();
+            src.clear();
+            FileChannel channel = outputStream.getChannel();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to write " + file);
+        }
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
@@ -0,0 +1,68 @@
+package com.whispertflite.utils;
+
+// FFT of purely real input that only produces the non-redundant bins 0..n/2.
+// The n real samples are treated as n/2 interleaved complex values, transformed with a
+// half-size FftPlan and then untangled with a post-twiddle:
+//   X[k] = E[k] + W_n^k * O[k], E[k] = (Z[k] + conj(Z[n/2-k])) / 2, O[k] = -i * (Z[k] - conj(Z[n/2-k])) / 2
+// Bins n/2+1..n-1 are the complex conjugates of bins n/2-1..1 and are never computed.
+public class RealFftPlan {
+    private final int n;
+    private final int half;
+    private final FftPlan halfPlan;
+    private final float[] cosTable;
+    private final float[] sinTable;
+
+    public RealFftPlan(int n) {
+        if (n < 2 || n % 2 != 0) {
+            throw new IllegalArgumentException("Real FFT size must be even: " + n);
+        }
+
+        this.n = n;
+        this.half = n / 2;
+        this.halfPlan = new FftPlan(half);
+
+        cosTable = new float[half + 1];
+        sinTable = new float[half + 1];
+        for (int k = 0; k <= half; k++) {
+            double theta = 2.0 * Math.PI * k / n;
+            cosTable[k] = (float) Math.cos(theta);
+            sinTable[k] = (float) Math.sin(theta);
+        }
+    }
+
+    public int getSize() {
+        return n;
+    }
+
+    // Number of output bins, n / 2 + 1
+    public int getBinCount() {
+        return half + 1;
+    }
+
+    // input: n real samples
+    // scratch: n floats, holds the half-size complex FFT
+    // output: interleaved complex (re, im) bins 0..n/2, at least 2 * (n / 2 + 1) floats
+    public void forward(float[] input, float[] scratch, float[] output) {
+        halfPlan.forwardComplex(input, scratch);
+
+        for (int k = 0; k <= half; k++) {
+            int a = 2 * (k % half);
+            int b = 2 * ((half - k) % half);
+
+            float ar = scratch[a];
+            float ai = scratch[a + 1];
+            float br = scratch[b];
+            float bi = scratch[b + 1];
+
+            float er = 0.5f * (ar + br);
+            float ei = 0.5f * (ai - bi);
+            float odr = 0.5f * (ai + bi);
+            float odi = -0.5f * (ar - br);
+
+            float wr = cosTable[k];
+            float wi = sinTable[k];
+            output[2 * k] = er + wr * odr + wi * odi;
+            output[2 * k + 1] = ei + wr * odi - wi * odr;
+        }
+    }
+}
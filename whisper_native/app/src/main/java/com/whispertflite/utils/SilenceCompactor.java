@@ -0,0 +1,237 @@
+package com.whispertflite.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Removes long pauses from audio before transcription, so each 30 second window holds more speech
+// and recordings with a lot of silence need fewer inferences.
+// Audio is measured in 512-sample blocks (as in silent_detection.cpp); a block is silent when its
+// RMS level is below the threshold. Runs of silence of at least minPause seconds are cut, keeping
+// padding seconds next to the speech on each side, so a long pause becomes a short one. Silence
+// at the start and end of the audio is cut up to the padding before the first / after the last
+// speech. Shorter pauses are kept as they are.
+// The result is an Index of the kept ranges: the compacted audio is read from the original through
+// it, without copying the whole recording, and compacted positions map back to original ones for
+// timestamps.
+public class SilenceCompactor {
+    public static final int BLOCK_SAMPLES = 512;
+    public static final float DEFAULT_THRESHOLD_DB = -35.0f;
+    public static final float DEFAULT_MIN_PAUSE_SECONDS = 1.0f;
+    public static final float DEFAULT_PADDING_SECONDS = 0.25f;
+
+    private float mThresholdPower = (float) Math.pow(10.0, DEFAULT_THRESHOLD_DB / 10.0);
+    private int mMinPauseSamples = (int) (DEFAULT_MIN_PAUSE_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE);
+    private int mPaddingSamples = (int) (DEFAULT_PADDING_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE);
+
+    // Block RMS level (dBFS) below which audio counts as silence
+    public void setThresholdDb(float thresholdDb) {
+        mThresholdPower = (float) Math.pow(10.0, thresholdDb / 10.0);
+    }
+
+    // Shortest pause that is cut, and the silence kept on each side of the speech around it
+    public void setPause(float minPauseSeconds, float paddingSeconds) {
+        int minPause = (int) (minPauseSeconds * WhisperUtil.WHISPER_SAMPLE_RATE);
+        int padding = (int) (paddingSeconds * WhisperUtil.WHISPER_SAMPLE_RATE);
+        if (padding < 0 || minPause < 2 * padding + BLOCK_SAMPLES) {
+            throw new IllegalArgumentException("Minimum pause must be longer than twice the padding: " + minPauseSeconds + "s/" + paddingSeconds + "s");
+        }
+        mMinPauseSamples = minPause;
+        mPaddingSamples = padding;
+    }
+
+    // Find the pauses in samples[offset .. offset + length)
+    public Index compact(float[] samples, int offset, int length) {
+        Scan scan = new Scan();
+        scan.push(samples, offset, length);
+        return scan.finish();
+    }
+
+    // Find the pauses in a WAV file, read one buffer at a time
+    public Index compactFile(WaveUtil.Reader reader, float[] buffer) throws IOException {
+        Scan scan = new Scan();
+        int read;
+        while ((read = reader.read(scan.mPosition, buffer, 0, buffer.length)) > 0) {
+            scan.push(buffer, 0, read);
+        }
+        return scan.finish();
+    }
+
+    // Block by block pass over the audio, collecting the ranges to keep
+    private class Scan {
+        private final Index mIndex = new Index();
+        private int mPosition = 0;
+        private double mBlockSum = 0;
+        private int mBlockFill = 0;
+        private int mSilenceStart = -1;
+        private int mKeepFrom = 0;
+
+        void push(float[] samples, int offset, int length) {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                float sample = samples[i];
+                mBlockSum += sample * sample;
+                mPosition++;
+                if (++mBlockFill == BLOCK_SAMPLES) {
+                    endBlock();
+                }
+            }
+        }
+
+        Index finish() {
+            if (mBlockFill > 0) {
+                endBlock();
+            }
+            if (mSilenceStart >= 0) {
+                endSilence(mPosition, true);
+            }
+            if (mPosition > mKeepFrom) {
+                mIndex.add(mKeepFrom, mPosition);
+            }
+            mIndex.mOriginalLength = mPosition;
+            return mIndex;
+        }
+
+        private void endBlock() {
+            boolean silent = mBlockSum / mBlockFill < mThresholdPower;
+            int blockStart = mPosition - mBlockFill;
+            mBlockSum = 0;
+            mBlockFill = 0;
+
+            if (silent) {
+                if (mSilenceStart < 0) {
+                    mSilenceStart = blockStart;
+                }
+            } else if (mSilenceStart >= 0) {
+                endSilence(blockStart, false);
+            }
+        }
+
+        // Cut the silence [mSilenceStart, end) if it is a long pause
+        private void endSilence(int end, boolean atEnd) {
+            int start = mSilenceStart;
+            mSilenceStart = -1;
+            if (end - start < mMinPauseSamples) {
+                return;
+            }
+            int cutStart = start == 0 ? 0 : start + mPaddingSamples;
+            int cutEnd = atEnd ? end : end - mPaddingSamples;
+            if (cutStart > mKeepFrom) {
+                mIndex.add(mKeepFrom, cutStart);
+            }
+            mKeepFrom = cutEnd;
+        }
+    }
+
+    // Kept ranges of the original audio, in order, and where each starts in the compacted audio
+    public static class Index {
+        private int[] mOriginalStarts = new int[16];
+        private int[] mOriginalEnds = new int[16];
+        private int[] mCompactedStarts = new int[16];
+        private int mCount = 0;
+        private int mCompactedLength = 0;
+        private int mOriginalLength = 0;
+
+        private Index() {
+        }
+
+        private void add(int start, int end) {
+            if (mCount == mOriginalStarts.length) {
+                mOriginalStarts = Arrays.copyOf(mOriginalStarts, 2 * mCount);
+                mOriginalEnds = Arrays.copyOf(mOriginalEnds, 2 * mCount);
+                mCompactedStarts = Arrays.copyOf(mCompactedStarts, 2 * mCount);
+            }
+            mOriginalStarts[mCount] = start;
+            mOriginalEnds[mCount] = end;
+            mCompactedStarts[mCount] = mCompactedLength;
+            mCount++;
+            mCompactedLength += end - start;
+        }
+
+        public int getOriginalLength() {
+            return mOriginalLength;
+        }
+
+        public int getCompactedLength() {
+            return mCompactedLength;
+        }
+
+        // Number of kept ranges, i.e. pauses cut + 1 (0 if the audio is all silence)
+        public int getRangeCount() {
+            return mCount;
+        }
+
+        // Whether anything was cut; if not, the compacted audio is the original
+        public boolean hasCuts() {
+            return mCompactedLength != mOriginalLength;
+        }
+
+        // Original position of compacted sample position; a position on a cut maps to the start
+        // of the speech after it
+        public int toOriginal(int position) {
+            if (mCount == 0) {
+                return 0;
+            }
+            if (position >= mCompactedLength) {
+                return mOriginalEnds[mCount - 1] + position - mCompactedLength;
+            }
+            int range = findRange(position);
+            return mOriginalStarts[range] + position - mCompactedStarts[range];
+        }
+
+        // Original position of the end of compacted range [.., end), i.e. the end of the speech
+        // before a cut rather than the start of the speech after it
+        public int toOriginalEnd(int end) {
+            return end <= 0 ? toOriginal(0) : toOriginal(end - 1) + 1;
+        }
+
+        // Copy compacted samples [start, start + count) of the in-memory audio
+        // src[srcOffset .. srcOffset + originalLength) into dst[0..]; returns the number copied
+        public int read(float[] src, int srcOffset, int start, float[] dst, int count) {
+            return read(start, count, (originalStart, dstOffset, n) -> {
+                System.arraycopy(src, srcOffset + originalStart, dst, dstOffset, n);
+                return n;
+            });
+        }
+
+        // Read compacted samples [start, start + count) of an open WAV file into dst[0..]
+        public int read(WaveUtil.Reader file, int start, float[] dst, int count) throws IOException {
+            return read(start, count, (originalStart, dstOffset, n) -> file.read(originalStart, dst, dstOffset, n));
+        }
+
+        private interface RangeReader<E extends Exception> {
+            int read(int originalStart, int dstOffset, int count) throws E;
+        }
+
+        private <E extends Exception> int read(int start, int count, RangeReader<E> reader) throws E {
+            count = Math.max(0, Math.min(count, mCompactedLength - start));
+            if (count == 0) {
+                return 0;
+            }
+            int read = 0;
+            for (int range = findRange(start); read < count && range < mCount; range++) {
+                int skip = start + read - mCompactedStarts[range];
+                int n = Math.min(count - read, mOriginalEnds[range] - mOriginalStarts[range] - skip);
+                int got = reader.read(mOriginalStarts[range] + skip, read, n);
+                read += got;
+                if (got < n) {
+                    break;
+                }
+            }
+            return read;
+        }
+
+        // Last range starting at or before compacted position
+        private int findRange(int position) {
+            int lo = 0;
+            int hi = mCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (mCompactedStarts[mid] <= position) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.whispertflite.utils;
+
+import static com.whispertflite.utils.WhisperUtil.LOG_MEL_SILENCE;
+import static com.whispertflite.utils.WhisperUtil.WHISPER_HOP_LENGTH;
+import static com.whispertflite.utils.WhisperUtil.WHISPER_MEL_LEN;
+import static com.whispertflite.utils.WhisperUtil.WHISPER_N_FFT;
+import static com.whispertflite.utils.WhisperUtil.WHISPER_N_MEL;
+
+import java.nio.FloatBuffer;
+
+// Incremental log mel extractor for live audio.
+// Samples can be pushed in chunks of any size; each push computes log mel only for the frames
+// it completes (one per 160-sample hop once the 400-sample window is filled) and stores them in
+// a circular buffer of the most recent WHISPER_MEL_LEN frames. The running maximum used for
+// clamping is kept with a monotonic queue, so producing the normalised (1, 80, 3000) input
+// costs one pass over the buffer and never recomputes older frames.
+// Frames whose audio is no longer needed can be dropped from the front with discardBefore.
+// Not thread-safe: push and read from the same thread.
+public class StreamingMelExtractor {
+    private final WhisperUtil mWhisperUtil;
+
+    // Samples not yet consumed by a complete frame; pending[0] is absolute sample pendingStart
+    private float[] pending = new float[WHISPER_N_FFT + WHISPER_HOP_LENGTH * 100];
+    private int pendingLength = 0;
+    private long pendingStart = 0;
+
+    // Raw log mel frames, frame-major: frame slot s occupies frames[s * WHISPER_N_MEL ...]
+    private final float[] frames = new float[WHISPER_MEL_LEN * WHISPER_N_MEL];
+    private final FloatBuffer frameBuffer = FloatBuffer.wrap(frames);
+    private final float[] frameMax = new float[WHISPER_MEL_LEN];
+
+    // Frames after the last complete one, whose window runs past the audio pushed so far: built
+    // from the zero-padded pending samples for each tensor and not kept, as later pushes complete
+    // them. Frame t occupies tailFrames[t * WHISPER_N_MEL ...]
+    private static final int MAX_TAIL_FRAMES = (WHISPER_N_FFT + WHISPER_HOP_LENGTH - 1) / WHISPER_HOP_LENGTH;
+    private final float[] tailFrames = new float[MAX_TAIL_FRAMES * WHISPER_N_MEL];
+    private final FloatBuffer tailBuffer = FloatBuffer.wrap(tailFrames);
+    private long firstFrame = 0;   // absolute index of the oldest retained frame
+    private long nextFrame = 0;    // absolute index of the next frame to compute
+
+    // Monotonic queue of absolute frame indices with decreasing frameMax
+    private final long[] maxQueue = new long[WHISPER_MEL_LEN];
+    private int maxQueueHead = 0;
+    private int maxQueueSize = 0;
+
+    public StreamingMelExtractor(WhisperUtil whisperUtil) {
+        mWhisperUtil = whisperUtil;
+    }
+
+    public void reset() {
+        pendingLength = 0;
+        pendingStart = 0;
+        firstFrame = 0;
+        nextFrame = 0;
+        maxQueueHead = 0;
+        maxQueueSize = 0;
+    }
+
+    // Number of frames currently held, at most WHISPER_MEL_LEN
+    public int getFrameCount() {
+        return (int) (nextFrame - firstFrame);
+    }
+
+    // Total number of samples pushed since the last reset
+    public long getSampleCount() {
+        return pendingStart + pendingLength;
+    }
+
+    // Stream position, in samples, where the oldest retained frame starts
+    public long getFirstSample() {
+        return firstFrame * WHISPER_HOP_LENGTH;
+    }
+
+    // Forget the frames that start before stream sample position sample, e.g. audio whose text
+    // has been finalised. Later frames and the pending samples are kept.
+    public void discardBefore(long sample) {
+        long frame = Math.min((sample + WHISPER_HOP_LENGTH - 1) / WHISPER_HOP_LENGTH, nextFrame);
+        if (frame <= firstFrame) {
+            return;
+        }
+        firstFrame = frame;
+
+        while (maxQueueSize > 0 && maxQueue[maxQueueHead] < firstFrame) {
+            maxQueueHead = (maxQueueHead + 1) % WHISPER_MEL_LEN;
+            maxQueueSize--;
+        }
+    }
+
+    public void push(float[] samples) {
+        push(samples, 0, samples.length);
+    }
+
+    public void push(float[] samples, int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            float[] grown = new float[Math.max(pending.length * 2, pendingLength + length)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        System.arraycopy(samples, offset, pending, pendingLength, length);
+        pendingLength += length;
+
+        // Compute every frame whose full window is now available
+        long available = pendingStart + pendingLength;
+        while (nextFrame * WHISPER_HOP_LENGTH + WHISPER_N_FFT <= available) {
+            addFrame((int) (nextFrame * WHISPER_HOP_LENGTH - pendingStart));
+        }
+
+        // Drop samples that no future frame will read
+        int consumed = (int) (nextFrame * WHISPER_HOP_LENGTH - pendingStart);
+        if (consumed > 0) {
+            System.arraycopy(pending, consumed, pending, 0, pendingLength - consumed);
+            pendingLength -= consumed;
+            pendingStart += consumed;
+        }
+    }
+
+    // Normalised log mel of the retained frames in (WHISPER_N_MEL, WHISPER_MEL_LEN) layout, oldest
+    // frame first, as the batch extractor computes it for the same audio zero-padded to 30 seconds.
+    public void getInputTensor(float[] dst) {
+        getInputTensor(FloatBuffer.wrap(dst));
+    }
+
+    // Same as above, written at absolute indices 0.. of dst, e.g. the interpreter's input buffer
+    public void getInputTensor(FloatBuffer dst) {
+        int count = getFrameCount();
+
+        // Frames starting before the end of the audio but not complete yet
+        long tailSamples = getSampleCount() - nextFrame * WHISPER_HOP_LENGTH;
+        int tail = (int) Math.min(WHISPER_MEL_LEN - count, (tailSamples + WHISPER_HOP_LENGTH - 1) / WHISPER_HOP_LENGTH);
+
+        // Clamp against the maximum over real and padded frames, as the batch extractor does
+        double mmax = maxQueueSize > 0 ? frameMax[slot(maxQueue[maxQueueHead])] : -1e20;
+        for (int t = 0; t < tail; t++) {
+            int pendingOffset = (int) ((nextFrame + t) * WHISPER_HOP_LENGTH - pendingStart);
+            float max = mWhisperUtil.computeMelFrame(pending, pendingOffset, pendingLength, tailBuffer, t * WHISPER_N_MEL, 1);
+            mmax = Math.max(mmax, max);
+        }
+        if (count + tail < WHISPER_MEL_LEN && LOG_MEL_SILENCE > mmax) {
+            mmax = LOG_MEL_SILENCE;
+        }
+        mmax -= 8.0;
+
+        for (int t = 0; t < count; t++) {
+            int base = slot(firstFrame + t) * WHISPER_N_MEL;
+            for (int j = 0; j < WHISPER_N_MEL; j++) {
+                dst.put(j * WHISPER_MEL_LEN + t, normalize(frames[base + j], mmax));
+            }
+        }
+
+        for (int t = 0; t < tail; t++) {
+            int base = t * WHISPER_N_MEL;
+            for (int j = 0; j < WHISPER_N_MEL; j++) {
+                dst.put(j * WHISPER_MEL_LEN + count + t, normalize(tailFrames[base + j], mmax));
+            }
+        }
+
+        float silence = normalize(LOG_MEL_SILENCE, mmax);
+        for (int j = 0; j < WHISPER_N_MEL; j++) {
+            for (int t = count + tail; t < WHISPER_MEL_LEN; t++) {
+                dst.put(j * WHISPER_MEL_LEN + t, silence);
+            }
+        }
+    }
+
+    private void addFrame(int pendingOffset) {
+        // Evict the oldest frame once the buffer is full
+        if (nextFrame - firstFrame == WHISPER_MEL_LEN) {
+            if (maxQueueSize > 0 && maxQueue[maxQueueHead] == firstFrame) {
+                maxQueueHead = (maxQueueHead + 1) % WHISPER_MEL_LEN;
+                maxQueueSize--;
+            }
+            firstFrame++;
+        }
+
+        int s = slot(nextFrame);
+        int base = s * WHISPER_N_MEL;
+        float max = mWhisperUtil.computeMelFrame(pending, pendingOffset, pendingLength, frameBuffer, base, 1);
+        frameMax[s] = max;
+
+        // Older frames with a smaller maximum can never be the window maximum again
+        while (maxQueueSize > 0) {
+            int tail = (maxQueueHead + maxQueueSize - 1) % WHISPER_MEL_LEN;
+            if (frameMax[slot(maxQueue[tail])] > max) {
+                break;
+            }
+            maxQueueSize--;
+        }
+        maxQueue[(maxQueueHead + maxQueueSize) % WHISPER_MEL_LEN] = nextFrame;
+        maxQueueSize++;
+
+        nextFrame++;
+    }
+
+    private static int slot(long frame) {
+        return (int) (frame % WHISPER_MEL_LEN);
+    }
+
+    private static float normalize(float value, double mmax) {
+        if (value < mmax) {
+            value = (float) mmax;
+        }
+        return (float) ((value + 4.0) / 4.0);
+    }
+}
@@ -0,0 +1,106 @@
+package com.whispertflite.utils;
+
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Byte-level detokenizer.
+// Whisper's BPE tokens are raw byte fragments: one multibyte UTF-8 character (e.g. CJK) can be
+// split across two or three tokens, so decoding token by token produces U+FFFD garbage.
+// Token bytes are appended to one growable buffer and UTF-8 decoded once, either for the whole
+// transcript (decode) or up to the last complete character when streaming (drain).
+// Not thread-safe: use one decoder per engine / session.
+public class TokenDecoder {
+    private final WhisperUtil mWhisperUtil;
+
+    private byte[] bytes = new byte[1024];
+    private int length = 0;
+
+    public TokenDecoder(WhisperUtil whisperUtil) {
+        mWhisperUtil = whisperUtil;
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    // Number of undecoded bytes held
+    public int length() {
+        return length;
+    }
+
+    // Append one token. Returns false for EOT; special tokens (> EOT) add nothing.
+    public boolean append(int token) {
+        int tokenEOT = mWhisperUtil.getTokenEOT();
+        if (token == tokenEOT) {
+            return false;
+        }
+
+        int len = token < tokenEOT ? mWhisperUtil.getTokenByteLength(token) : 0;
+        if (len > 0) {
+            ensureCapacity(length + len);
+            mWhisperUtil.getTokenBytes(token, bytes, length);
+            length += len;
+        }
+        return true;
+    }
+
+    // Append tokens[0..count), reading the buffer in place with absolute gets. Stops at EOT.
+    public void append(IntBuffer tokens, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!append(tokens.get(i))) {
+                break;
+            }
+        }
+    }
+
+    // Decode everything appended so far and clear the buffer
+    public String decode() {
+        String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        length = 0;
+        return text;
+    }
+
+    // Decode up to the last complete UTF-8 character; a trailing partial character is kept and
+    // completed by the bytes of the next tokens
+    public String drain() {
+        int end = safeBoundary();
+        String text = new String(bytes, 0, end, StandardCharsets.UTF_8);
+        System.arraycopy(bytes, end, bytes, 0, length - end);
+        length -= end;
+        return text;
+    }
+
+    // Index just past the last complete character
+    private int safeBoundary() {
+        // A UTF-8 character is at most 4 bytes, so its lead byte is within the last 4
+        for (int i = length - 1; i >= 0 && i >= length - 4; i--) {
+            int b = bytes[i] & 0xff;
+            if ((b & 0xc0) == 0x80) {
+                continue; // continuation byte
+            }
+
+            int needed;
+            if (b < 0x80) {
+                needed = 1;
+            } else if ((b & 0xe0) == 0xc0) {
+                needed = 2;
+            } else if ((b & 0xf0) == 0xe0) {
+                needed = 3;
+            } else if ((b & 0xf8) == 0xf0) {
+                needed = 4;
+            } else {
+                needed = 1; // invalid lead byte, let the decoder replace it
+            }
+            return length - i >= needed ? length : i;
+        }
+        return length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            byte[] grown = new byte[Math.max(bytes.length * 2, capacity)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+}
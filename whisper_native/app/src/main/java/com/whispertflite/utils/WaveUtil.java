@@ -2,17 +2,21 @@ package com.whispertflite.utils;
 
 import android.util.Log;
 
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class WaveUtil {
     public static final String TAG = "WaveUtil";
     public static final String RECORDING_FILE = "MicInput.wav";
 
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
     public static void createWaveFile(String filePath, byte[] samples, int sampleRate, int numChannels, int bytesPerSample) {
         try {
             int dataSize = samples.length; // actual data size in bytes
@@ -45,59 +49,190 @@ public class WaveUtil {
     }
 
     public static float[] getSamples(String filePath) {
-        try {
-            FileInputStream fileInputStream = new FileInputStream(filePath);
+        try (Reader reader = Reader.open(filePath)) {
+            float[] samples = new float[reader.getNumSamples()];
+            int read = reader.read(0, samples, 0, samples.length);
+            return read == samples.length ? samples : Arrays.copyOf(samples, read);
+        } catch (IOException e) {
+            Log.e(TAG, "Error...", e);
+        }
+        return new float[0];
+    }
 
-            // Read the WAV file header
-            byte[] header = new byte[44];
-            fileInputStream.read(header);
+    // Number of samples (per channel) in the data chunk, 0 if the file is not a supported WAV file
+    public static int getNumSamples(String filePath) {
+        try (Reader reader = Reader.open(filePath)) {
+            return reader.getNumSamples();
+        } catch (IOException e) {
+            Log.e(TAG, "Error...", e);
+        }
+        return 0;
+    }
 
-            // Check if it's a valid WAV file (contains "RIFF" and "WAVE" markers)
-            String headerStr = new String(header, 0, 4);
-            if (!headerStr.equals("RIFF")) {
-                System.err.println("Not a valid WAV file");
-                return new float[0];
-            }
+    // Read up to count samples starting at sample index start into dst[0..] in PCM_FLOAT format,
+    // without loading the rest of the file. Returns the number of samples read.
+    public static int getSamples(String filePath, int start, float[] dst, int count) {
+        return getSamples(filePath, start, dst, 0, count);
+    }
+
+    // As above, into dst[dstOffset..]
+    public static int getSamples(String filePath, int start, float[] dst, int dstOffset, int count) {
+        try (Reader reader = Reader.open(filePath)) {
+            return reader.read(start, dst, dstOffset, count);
+        } catch (IOException e) {
+            Log.e(TAG, "Error...", e);
+        }
+        return 0;
+    }
 
-            // Get the audio format details from the header
-            int sampleRate = byteArrayToNumber(header, 24, 4);
-            int bitsPerSample = byteArrayToNumber(header, 34, 2);
-            if (bitsPerSample != 16 && bitsPerSample != 32) {
-                System.err.println("Unsupported bits per sample: " + bitsPerSample);
-                return new float[0];
+    // Open WAV file for repeated windowed reads, as the native WAVFile in wav_util.h.
+    // The RIFF chunks are walked to find 'fmt ' and 'data', so LIST or other chunks before the
+    // samples are skipped, and the sample count comes from the 'data' chunk size. PCM16 and
+    // float32 are supported; multi-channel audio is mixed down to mono.
+    public static class Reader implements Closeable {
+        private static final int FORMAT_PCM = 1;
+        private static final int FORMAT_IEEE_FLOAT = 3;
+        private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+        private final RandomAccessFile mFile;
+        private int mAudioFormat;
+        private int mChannels;
+        private int mBlockAlign;
+        private int mBitsPerSample;
+        private long mDataOffset;
+        private int mNumSamples;
+        private byte[] mChunk;
+
+        private Reader(RandomAccessFile file) {
+            mFile = file;
+        }
+
+        public static Reader open(String filePath) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(filePath, "r");
+            Reader reader = new Reader(file);
+            try {
+                reader.parse();
+            } catch (IOException e) {
+                file.close();
+                throw new IOException("Not a valid WAV file: " + filePath, e);
             }
+            return reader;
+        }
 
-            // Get the size of the data section (all PCM data)
-            int dataLength = fileInputStream.available(); // byteArrayToInt(header, 40, 4);
+        // Number of samples per channel
+        public int getNumSamples() {
+            return mNumSamples;
+        }
 
-            // Calculate the number of samples
-            int bytesPerSample = bitsPerSample / 8;
-            int numSamples = dataLength / bytesPerSample;
+        public int getNumChannels() {
+            return mChannels;
+        }
 
-            // Read the audio data
-            byte[] audioData = new byte[dataLength];
-            fileInputStream.read(audioData);
-            ByteBuffer byteBuffer = ByteBuffer.wrap(audioData);
-            byteBuffer.order(ByteOrder.nativeOrder());
+        // Read up to count samples starting at sample index start into dst[dstOffset..] in
+        // PCM_FLOAT format; returns the number read, less than count at the end of the file
+        public int read(int start, float[] dst, int dstOffset, int count) throws IOException {
+            count = Math.max(0, Math.min(count, mNumSamples - start));
+            if (count == 0) {
+                return 0;
+            }
+            mFile.seek(mDataOffset + (long) start * mBlockAlign);
 
-            // Convert audio data to PCM_FLOAT format
-            float[] samples = new float[numSamples];
-            if (bitsPerSample == 16) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = (float) (byteBuffer.getShort() / 32768.0);
+            // Convert in bounded chunks so a 30 second window needs no window-sized byte array
+            if (mChunk == null) {
+                mChunk = new byte[Math.max(mBlockAlign, READ_CHUNK_SIZE - READ_CHUNK_SIZE % mBlockAlign)];
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(mChunk).order(ByteOrder.LITTLE_ENDIAN);
+            int bytesPerSample = mBitsPerSample / 8;
+            int read = 0;
+            while (read < count) {
+                int n = Math.min(count - read, mChunk.length / mBlockAlign);
+                mFile.readFully(mChunk, 0, n * mBlockAlign);
+                for (int i = 0; i < n; i++) {
+                    int base = i * mBlockAlign;
+                    float sum = 0;
+                    for (int c = 0; c < mChannels; c++) {
+                        int index = base + c * bytesPerSample;
+                        sum += mAudioFormat == FORMAT_PCM ? byteBuffer.getShort(index) / 32768.0f : byteBuffer.getFloat(index);
+                    }
+                    dst[dstOffset + read + i] = mChannels == 1 ? sum : sum / mChannels;
                 }
-            } else if (bitsPerSample == 32) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = byteBuffer.getFloat();
+                read += n;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+
+        private void parse() throws IOException {
+            long length = mFile.length();
+            byte[] header = new byte[12];
+            mFile.readFully(header);
+            if (!new String(header, 0, 4, StandardCharsets.US_ASCII).equals("RIFF")
+                    || !new String(header, 8, 4, StandardCharsets.US_ASCII).equals("WAVE")) {
+                throw new IOException("Missing RIFF/WAVE header");
+            }
+
+            boolean hasFormat = false;
+            long pos = 12;
+            byte[] chunkHeader = new byte[8];
+            while (pos + chunkHeader.length <= length) {
+                mFile.seek(pos);
+                mFile.readFully(chunkHeader);
+                pos += chunkHeader.length;
+                String id = new String(chunkHeader, 0, 4, StandardCharsets.US_ASCII);
+                long size = byteArrayToNumber(chunkHeader, 4, 4) & 0xffffffffL;
+                long available = length - pos;
+
+                if (id.equals("fmt ")) {
+                    if (size < 16 || size > available) {
+                        throw new IOException("Invalid fmt chunk");
+                    }
+                    byte[] format = new byte[(int) Math.min(size, 26)];
+                    mFile.readFully(format);
+                    mAudioFormat = byteArrayToNumber(format, 0, 2);
+                    mChannels = byteArrayToNumber(format, 2, 2);
+                    mBlockAlign = byteArrayToNumber(format, 12, 2);
+                    mBitsPerSample = byteArrayToNumber(format, 14, 2);
+
+                    // WAVE_FORMAT_EXTENSIBLE keeps the real format in the first 2 bytes of the sub-format GUID
+                    if (mAudioFormat == FORMAT_EXTENSIBLE && format.length >= 26) {
+                        mAudioFormat = byteArrayToNumber(format, 24, 2);
+                    }
+                    hasFormat = true;
+                } else if (id.equals("data")) {
+                    if (!hasFormat) {
+                        throw new IOException("data chunk before fmt chunk");
+                    }
+                    checkFormat();
+
+                    // Recorders that could not seek back leave the size at 0 or 0xffffffff: use what is there
+                    if (size == 0 || size > available) {
+                        size = available;
+                    }
+                    mDataOffset = pos;
+                    mNumSamples = (int) Math.min(size / mBlockAlign, Integer.MAX_VALUE);
+                    return;
                 }
+
+                // LIST, fact, cue, ... are skipped; chunk bodies are padded to an even size
+                pos += size + (size & 1);
             }
+            throw new IOException("No data chunk");
+        }
 
-            return samples;
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "Error...", e);
+        private void checkFormat() throws IOException {
+            boolean pcm16 = mAudioFormat == FORMAT_PCM && mBitsPerSample == 16;
+            boolean float32 = mAudioFormat == FORMAT_IEEE_FLOAT && mBitsPerSample == 32;
+            if (!pcm16 && !float32) {
+                throw new IOException("Unsupported WAV format " + mAudioFormat + " with " + mBitsPerSample + " bits per sample");
+            }
+            if (mChannels == 0 || mBlockAlign < mChannels * (mBitsPerSample / 8)) {
+                throw new IOException("Invalid channel layout: " + mChannels + " channels, block align " + mBlockAlign);
+            }
         }
-        return new float[0];
     }
 
     // Convert a portion of a byte array into an integer or a short
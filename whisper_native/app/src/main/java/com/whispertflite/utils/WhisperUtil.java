@@ -2,20 +2,21 @@ package com.whispertflite.utils;
 
 import static java.lang.Math.cos;
 import static java.lang.Math.log10;
-import static java.lang.Math.sin;
 
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WhisperUtil {
     private static final String TAG = "WhisperUtil";
@@ -27,9 +28,19 @@ public class WhisperUtil {
     public static final int WHISPER_CHUNK_SIZE = 30;
     public static final int WHISPER_MEL_LEN = 3000;
 
+    // log10 of the mel floor (1e-10), the value of every frame of pure zeros
+    static final float LOG_MEL_SILENCE = -10.0f;
+
     private final WhisperVocab vocab = new WhisperVocab();
     private final WhisperFilter filters = new WhisperFilter();
-    private final WhisperMel mel = new WhisperMel();
+
+    // Shared by all mel worker threads; twiddles and window are computed once
+    private final RealFftPlan fftPlan = new RealFftPlan(WHISPER_N_FFT);
+    private final float[] hann = createHannWindow(WHISPER_N_FFT);
+
+    // Long-lived mel workers, each with its own FFT scratch buffers
+    private ExecutorService melExecutor;
+    private final ThreadLocal<MelScratch> melScratch = ThreadLocal.withInitial(MelScratch::new);
 
     // Helper functions definitions
     public int getTokenTranslate() {
@@ -65,52 +76,66 @@ public class WhisperUtil {
     }
 
     public String getWordFromToken(int token) {
-        return vocab.tokenToWord.get(token);
+        if (token < 0 || token >= vocab.nTokens) {
+            return null;
+        }
+
+        // Token strings are decoded on first use; a racing thread at worst decodes one twice
+        String word = vocab.words[token];
+        if (word == null) {
+            word = token < vocab.nVocab ? decodeWord(token) : specialWord(token);
+            vocab.words[token] = word;
+        }
+        return word;
     }
 
-    // Load filters and vocab data from pre-generated filters_vocab_en.bin file
-    public boolean loadFiltersAndVocab(boolean multilingual, String vocabPath) throws IOException {
+    // Raw byte length of a vocabulary token, 0 for ids outside the file's vocabulary
+    int getTokenByteLength(int token) {
+        if (token < 0 || token >= vocab.nVocab) {
+            return 0;
+        }
+        return vocab.tokenOffsets.get(token + 1) - vocab.tokenOffsets.get(token);
+    }
 
-        // Read vocab file
-        byte[] bytes = Files.readAllBytes(Paths.get(vocabPath));
-        ByteBuffer vocabBuf = ByteBuffer.wrap(bytes);
-        vocabBuf.order(ByteOrder.nativeOrder());
-        Log.d(TAG, "Vocab file size: " + vocabBuf.limit());
+    // Copy the raw bytes of a vocabulary token into dst at offset, see getTokenByteLength.
+    // One bulk read through a private view, so concurrent decoders never share a buffer position.
+    void getTokenBytes(int token, byte[] dst, int offset) {
+        int start = vocab.tokenOffsets.get(token);
+        int end = vocab.tokenOffsets.get(token + 1);
+        ByteBuffer bytes = vocab.tokenBytes.duplicate();
+        bytes.position(start);
+        bytes.get(dst, offset, end - start);
+    }
 
-        // @magic:USEN
-        int magic = vocabBuf.getInt();
-        if (magic == 0x5553454e) {
-            Log.d(TAG, "Magic number: " + magic);
-        } else {
-            Log.d(TAG, "Invalid vocab file (bad magic: " + magic + "), " + vocabPath);
+    // Load filters and vocab data from pre-generated filters_vocab_en.bin file.
+    // The file is memory-mapped (see FiltersVocabFile); legacy USEN files are converted once.
+    public boolean loadFiltersAndVocab(boolean multilingual, String vocabPath) throws IOException {
+
+        ByteBuffer vocabBuf = FiltersVocabFile.load(vocabPath);
+        if (vocabBuf == null) {
             return false;
         }
+        Log.d(TAG, "Vocab file size: " + vocabBuf.limit());
 
-        // Load mel filters
-        filters.nMel = vocabBuf.getInt();
-        filters.nFft = vocabBuf.getInt();
+        // Load mel filters, read straight from the mapped file
+        filters.nMel = vocabBuf.getInt(FiltersVocabFile.HEADER_N_MEL);
+        filters.nFft = vocabBuf.getInt(FiltersVocabFile.HEADER_N_FFT);
         Log.d(TAG, "n_mel:" + filters.nMel + ", n_fft:" + filters.nFft);
 
-        byte[] filterData = new byte[filters.nMel * filters.nFft * Float.BYTES];
-        vocabBuf.get(filterData, 0, filterData.length);
-        ByteBuffer filterBuf = ByteBuffer.wrap(filterData);
-        filterBuf.order(ByteOrder.nativeOrder());
+        filters.data = slice(vocabBuf, vocabBuf.getInt(FiltersVocabFile.HEADER_FILTERS_OFFSET),
+                filters.nMel * filters.nFft * Float.BYTES).asFloatBuffer();
+        filters.compact();
+        Log.d(TAG, "Mel filter weights: " + filters.weights.length + " nonzero of " + filters.data.limit());
 
-        filters.data = new float[filters.nMel * filters.nFft];
-        for (int i = 0; filterBuf.hasRemaining(); i++) {
-            filters.data[i] = filterBuf.getFloat();
-        }
-
-        // Load vocabulary
-        int nVocab = vocabBuf.getInt();
+        // Load vocabulary, token strings are decoded when first used
+        int nVocab = vocabBuf.getInt(FiltersVocabFile.HEADER_N_VOCAB);
         Log.d(TAG, "nVocab: " + nVocab);
-        for (int i = 0; i < nVocab; i++) {
-            int len = vocabBuf.getInt();
-            byte[] wordBytes = new byte[len];
-            vocabBuf.get(wordBytes, 0, wordBytes.length);
-            String word = new String(wordBytes);
-            vocab.tokenToWord.put(i, word);
-        }
+
+        vocab.nVocab = nVocab;
+        vocab.tokenOffsets = slice(vocabBuf, vocabBuf.getInt(FiltersVocabFile.HEADER_TOKEN_OFFSETS_OFFSET),
+                (nVocab + 1) * Integer.BYTES).asIntBuffer();
+        vocab.tokenBytes = slice(vocabBuf, vocabBuf.getInt(FiltersVocabFile.HEADER_TOKEN_BYTES_OFFSET),
+                vocabBuf.getInt(FiltersVocabFile.HEADER_TOKEN_BYTES_LENGTH));
 
         // Add additional vocab ids
         int nVocabAdditional;
@@ -126,203 +151,221 @@ public class WhisperUtil {
             vocab.tokenBEG++;
         }
 
-        for (int i = nVocab; i < nVocabAdditional; i++) {
-            String word;
-            if (i > vocab.tokenBEG) {
-                word = "[_TT_" + (i - vocab.tokenBEG) + "]";
-            } else if (i == vocab.tokenEOT) {
-                word = "[_EOT_]";
-            } else if (i == vocab.tokenSOT) {
-                word = "[_SOT_]";
-            } else if (i == vocab.tokenPREV) {
-                word = "[_PREV_]";
-            } else if (i == vocab.tokenNOT) {
-                word = "[_NOT_]";
-            } else if (i == vocab.tokenBEG) {
-                word = "[_BEG_]";
-            } else {
-                word = "[_extra_token_" + i + "]";
-            }
-
-            vocab.tokenToWord.put(i, word);
-            //Log.d(TAG, "i= " + i + ", word= " + word);
-        }
+        vocab.nTokens = Math.max(nVocab, nVocabAdditional);
+        vocab.words = new String[vocab.nTokens];
 
         return true;
     }
 
-    // nSamples size => WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE => 480000
-    public float[] getMelSpectrogram(float[] samples, int nSamples, int nThreads) {
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer view = buf.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(buf.order());
+    }
 
-        int fftSize = WHISPER_N_FFT;
-        int fftStep = WHISPER_HOP_LENGTH;
+    private String decodeWord(int token) {
+        byte[] bytes = new byte[getTokenByteLength(token)];
+        getTokenBytes(token, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Added ids past the end of the file's vocabulary
+    private String specialWord(int token) {
+        if (token > vocab.tokenBEG) {
+            return "[_TT_" + (token - vocab.tokenBEG) + "]";
+        } else if (token == vocab.tokenEOT) {
+            return "[_EOT_]";
+        } else if (token == vocab.tokenSOT) {
+            return "[_SOT_]";
+        } else if (token == vocab.tokenPREV) {
+            return "[_PREV_]";
+        } else if (token == vocab.tokenNOT) {
+            return "[_NOT_]";
+        } else if (token == vocab.tokenBEG) {
+            return "[_BEG_]";
+        } else {
+            return "[_extra_token_" + token + "]";
+        }
+    }
 
-        mel.nMel = WHISPER_N_MEL;
-        mel.nLen = nSamples / fftStep;
-        mel.data = new float[mel.nMel * mel.nLen];
+    // nSamples size => WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE => 480000
+    public float[] getMelSpectrogram(float[] samples, int nSamples, int nThreads) {
+        return getMelSpectrogram(samples, nSamples, nSamples, nThreads);
+    }
 
-        float[] hann = new float[fftSize];
-        for (int i = 0; i < fftSize; i++) {
-            hann[i] = (float) (0.5 * (1.0 - cos(2.0 * Math.PI * i / fftSize)));
+    // Mel spectrogram of nSamples real samples zero-padded to nPaddedSamples.
+    // samples only needs to hold the nSamples real samples; frames that lie entirely in the
+    // zero-padded tail are not computed but filled with the constant silence column.
+    // Returns null if the thread was interrupted.
+    public float[] getMelSpectrogram(float[] samples, int nSamples, int nPaddedSamples, int nThreads) {
+        float[] data = new float[WHISPER_N_MEL * (nPaddedSamples / WHISPER_HOP_LENGTH)];
+        if (!getMelSpectrogram(samples, nSamples, nPaddedSamples, nThreads, FloatBuffer.wrap(data))) {
+            return null;
         }
+        return data;
+    }
 
-        int nFft = 1 + fftSize / 2;
-
-/////////////// UNCOMMENT below block to use multithreaded mel calculation /////////////////////////
-        // Calculate mel values using multiple threads
-        List<Thread> workers = new ArrayList<>();
-        for (int iw = 0; iw < nThreads; iw++) {
-            final int ith = iw;  // Capture iw in a final variable for use in the lambda
-            Thread thread = new Thread(() -> {
-                // Inside the thread, ith will have the same value as iw (first value is 0)
-                Log.d(TAG, "Thread " + ith + " started.");
-
-                float[] fftIn = new float[fftSize];
-                Arrays.fill(fftIn, 0.0f);
-                float[] fftOut = new float[fftSize * 2];
-
-                for (int i = ith; i < mel.nLen; i += nThreads) {
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
-
-/////////////// COMMENT below block to use multithreaded mel calculation ///////////////////////////
-//        float[] fftIn = new float[fftSize];
-//        Arrays.fill(fftIn, 0.0f);
-//        float[] fftOut = new float[fftSize * 2];
-//
-//        for (int i = 0; i < mel.nLen; i++) {
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
-
-            int offset = i * fftStep;
-
-            // apply Hanning window
-            for (int j = 0; j < fftSize; j++) {
-                if (offset + j < nSamples) {
-                    fftIn[j] = hann[j] * samples[offset + j];
-                } else {
-                    fftIn[j] = 0.0f;
-                }
-            }
+    // Same as above, but writes the normalised (n_mel, n_len) spectrogram straight into dst at
+    // absolute indices 0.. without allocating, e.g. into the interpreter's input buffer.
+    // Returns false if the thread was interrupted; dst is then incomplete and must not be used.
+    public boolean getMelSpectrogram(float[] samples, int nSamples, int nPaddedSamples, int nThreads, FloatBuffer dst) {
+        return getMelSpectrogram(samples, 0, nSamples, nPaddedSamples, nThreads, dst);
+    }
 
-            // FFT -> mag^2
-            fft(fftIn, fftOut);
-            for (int j = 0; j < fftSize; j++) {
-                fftOut[j] = fftOut[2 * j] * fftOut[2 * j] + fftOut[2 * j + 1] * fftOut[2 * j + 1];
+    // Same as above for the nSamples real samples starting at samples[offset], e.g. one window of a
+    // longer recording
+    public boolean getMelSpectrogram(float[] samples, int offset, int nSamples, int nPaddedSamples, int nThreads, FloatBuffer dst) {
+        int nMel = WHISPER_N_MEL;
+        int nLen = nPaddedSamples / WHISPER_HOP_LENGTH;
+
+        // Frames starting at or past nSamples see only zeros
+        int nFrames = Math.min(nLen, (nSamples + WHISPER_HOP_LENGTH - 1) / WHISPER_HOP_LENGTH);
+        double mmax = nFrames < nLen ? LOG_MEL_SILENCE : -1e20;
+        for (int j = 0; j < nMel; j++) {
+            for (int i = nFrames; i < nLen; i++) {
+                dst.put(j * nLen + i, LOG_MEL_SILENCE);
             }
+        }
 
-            for (int j = 1; j < fftSize / 2; j++) {
-                fftOut[j] += fftOut[fftSize - j];
+        // Split frames into contiguous blocks, one per worker, so that threads write
+        // disjoint runs of each mel row instead of interleaved neighbouring columns
+        int nBlocks = Math.max(1, Math.min(nThreads, nFrames));
+        int blockSize = (nFrames + nBlocks - 1) / nBlocks;
+        if (nBlocks == 1) {
+            mmax = Math.max(mmax, computeMelFrames(samples, offset, nSamples, 0, nFrames, dst, nLen));
+        } else {
+            ExecutorService executor = getMelExecutor(nThreads);
+            List<Future<Float>> futures = new ArrayList<>(nBlocks);
+            for (int frameStart = 0; frameStart < nFrames; frameStart += blockSize) {
+                int start = frameStart;
+                int end = Math.min(frameStart + blockSize, nFrames);
+                futures.add(executor.submit(() -> computeMelFrames(samples, offset, nSamples, start, end, dst, nLen)));
             }
 
-            // mel spectrogram
-            for (int j = 0; j < mel.nMel; j++) {
-                double sum = 0.0;
-                for (int k = 0; k < nFft; k++) {
-                    sum += (fftOut[k] * filters.data[j * nFft + k]);
-                }
-
-                if (sum < 1e-10) {
-                    sum = 1e-10;
+            // Every block is waited for even after an interrupt, so no worker is still writing dst
+            // once the caller gives it back
+            boolean interrupted = false;
+            for (Future<Float> future : futures) {
+                while (true) {
+                    try {
+                        mmax = Math.max(mmax, future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("Mel calculation failed", e.getCause());
+                    }
                 }
-
-                sum = log10(sum);
-                mel.data[j * mel.nLen + i] = (float) sum;
             }
-        }
-
-/////////////// UNCOMMENT below block to use multithreaded mel calculation /////////////////////////
-            });
-            workers.add(thread);
-            thread.start();
-        }
-
-        // Wait for all threads to finish
-        for (Thread worker : workers) {
-            try {
-                worker.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Mel calculation interrupted");
+                return false;
             }
         }
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
 
         // clamping and normalization
-        double mmax = -1e20;
-        for (int i = 0; i < mel.nMel * mel.nLen; i++) {
-            if (mel.data[i] > mmax) {
-                mmax = mel.data[i];
+        mmax -= 8.0;
+        for (int i = 0; i < nMel * nLen; i++) {
+            float value = dst.get(i);
+            if (value < mmax) {
+                value = (float) mmax;
             }
+            dst.put(i, (float) ((value + 4.0) / 4.0));
         }
+        return true;
+    }
 
-        mmax -= 8.0;
-        for (int i = 0; i < mel.nMel * mel.nLen; i++) {
-            if (mel.data[i] < mmax) {
-                mel.data[i] = (float) mmax;
-            }
-            mel.data[i] = (float) ((mel.data[i] + 4.0) / 4.0);
+    // Stop the mel worker threads; a later getMelSpectrogram() call starts a new pool
+    public synchronized void shutdown() {
+        if (melExecutor != null) {
+            melExecutor.shutdown();
+            melExecutor = null;
         }
+    }
 
-        return mel.data;
+    private synchronized ExecutorService getMelExecutor(int nThreads) {
+        if (melExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            melExecutor = Executors.newFixedThreadPool(nThreads, runnable -> {
+                Thread thread = new Thread(runnable, "MelWorker-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return melExecutor;
     }
 
-    private void dft(float[] input, float[] output) {
-        int inSize = input.length;
-        for (int k = 0; k < inSize; k++) {
-            float re = 0.0f;
-            float im = 0.0f;
-            for (int n = 0; n < inSize; n++) {
-                float angle = (float) (2 * Math.PI * k * n / inSize);
-                re += input[n] * cos(angle);
-                im -= input[n] * sin(angle);
-            }
-            output[k * 2 + 0] = re;
-            output[k * 2 + 1] = im;
+    // Log mel values of frames [frameStart, frameEnd) into dst[j * nLen + i]; returns their maximum
+    private float computeMelFrames(float[] samples, int offset, int nSamples, int frameStart, int frameEnd, FloatBuffer dst, int nLen) {
+        float max = -Float.MAX_VALUE;
+        for (int i = frameStart; i < frameEnd; i++) {
+            max = Math.max(max, computeMelFrame(samples, offset + i * WHISPER_HOP_LENGTH, offset + nSamples, dst, i, nLen));
         }
+        return max;
     }
 
-    private void fft(float[] input, float[] output) {
-        int inSize = input.length;
-        if (inSize == 1) {
-            output[0] = input[0];
-            output[1] = 0.0f;
-            return;
+    // Log mel values (before clamping and normalization) of the frame starting at samples[offset].
+    // Samples at or past nSamples read as zero. Mel bin j is written to dst[dstOffset + j * dstStride].
+    // Returns the largest value of the frame.
+    float computeMelFrame(float[] samples, int offset, int nSamples, FloatBuffer dst, int dstOffset, int dstStride) {
+        int fftSize = WHISPER_N_FFT;
+        int nFft = fftPlan.getBinCount();
+
+        MelScratch scratch = melScratch.get();
+        float[] fftIn = scratch.fftIn;
+        float[] fftOut = scratch.fftOut;
+
+        // apply Hanning window
+        for (int j = 0; j < fftSize; j++) {
+            if (offset + j < nSamples) {
+                fftIn[j] = hann[j] * samples[offset + j];
+            } else {
+                fftIn[j] = 0.0f;
+            }
         }
 
-        if (inSize % 2 == 1) {
-            dft(input, output);
-            return;
+        // FFT -> mag^2
+        fftPlan.forward(fftIn, scratch.fftScratch, fftOut);
+        for (int j = 0; j < nFft; j++) {
+            fftOut[j] = fftOut[2 * j] * fftOut[2 * j] + fftOut[2 * j + 1] * fftOut[2 * j + 1];
         }
 
-        float[] even = new float[inSize / 2];
-        float[] odd = new float[inSize / 2];
+        // Fold the mirror half back: for real input |X[fftSize - j]|^2 == |X[j]|^2
+        for (int j = 1; j < fftSize / 2; j++) {
+            fftOut[j] *= 2.0f;
+        }
 
-        int indxEven = 0;
-        int indxOdd = 0;
-        for (int i = 0; i < inSize; i++) {
-            if (i % 2 == 0) {
-                even[indxEven] = input[i];
-                indxEven++;
-            } else {
-                odd[indxOdd] = input[i];
-                indxOdd++;
+        // mel spectrogram, only over the nonzero bin range of each filter
+        float max = -Float.MAX_VALUE;
+        for (int j = 0; j < filters.nMel; j++) {
+            int binStart = filters.binStart[j];
+            int binEnd = filters.binEnd[j];
+            int weightOffset = filters.weightOffset[j] - binStart;
+
+            double sum = 0.0;
+            for (int k = binStart; k < binEnd; k++) {
+                sum += (fftOut[k] * filters.weights[weightOffset + k]);
+            }
+
+            if (sum < 1e-10) {
+                sum = 1e-10;
             }
+
+            sum = log10(sum);
+            dst.put(dstOffset + j * dstStride, (float) sum);
+            max = Math.max(max, (float) sum);
         }
+        return max;
+    }
 
-        float[] evenFft = new float[inSize];
-        float[] oddFft = new float[inSize];
-
-        fft(even, evenFft);
-        fft(odd, oddFft);
-        for (int k = 0; k < inSize / 2; k++) {
-            float theta = (float) (2 * Math.PI * k / inSize);
-            float re = (float) cos(theta);
-            float im = (float) -sin(theta);
-            float reOdd = oddFft[2 * k + 0];
-            float imOdd = oddFft[2 * k + 1];
-            output[2 * k + 0] = evenFft[2 * k + 0] + re * reOdd - im * imOdd;
-            output[2 * k + 1] = evenFft[2 * k + 1] + re * imOdd + im * reOdd;
-            output[2 * (k + inSize / 2) + 0] = evenFft[2 * k + 0] - re * reOdd + im * imOdd;
-            output[2 * (k + inSize / 2) + 1] = evenFft[2 * k + 1] - re * imOdd - im * reOdd;
+    private static float[] createHannWindow(int size) {
+        float[] window = new float[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = (float) (0.5 * (1.0 - cos(2.0 * Math.PI * i / size)));
         }
+        return window;
     }
 
     // Helper class definitions
@@ -347,19 +390,63 @@ public class WhisperUtil {
         // Vocab types
         final int nVocabEnglish = 51864;       // for english only vocab
         final int nVocabMultilingual = 51865;  // for multilingual vocab
-        Map<Integer, String> tokenToWord = new HashMap<>();
+
+        // Views into the mapped vocab file: token i < nVocab is tokenBytes[tokenOffsets[i] .. tokenOffsets[i + 1]).
+        // Ids nVocab..nTokens-1 are the added special tokens; words caches decoded strings by id.
+        int nVocab = 0;
+        int nTokens = 0;
+        IntBuffer tokenOffsets;
+        ByteBuffer tokenBytes;
+        String[] words = new String[0];
     }
 
     private static class WhisperFilter {
         int nMel = 0;
         int nFft = 0;
-        float[] data;
+        FloatBuffer data;  // dense (nMel, nFft) weights, a view of the mapped file
+
+        // Sparse form of data: filter j covers bins [binStart[j], binEnd[j]) and its weights
+        // start at weights[weightOffset[j]]. Each triangular mel filter spans only a few bins.
+        int[] binStart;
+        int[] binEnd;
+        int[] weightOffset;
+        float[] weights;
+
+        void compact() {
+            binStart = new int[nMel];
+            binEnd = new int[nMel];
+            weightOffset = new int[nMel];
+
+            int nWeights = 0;
+            for (int j = 0; j < nMel; j++) {
+                int start = 0;
+                while (start < nFft && data.get(j * nFft + start) == 0.0f) {
+                    start++;
+                }
+                int end = nFft;
+                while (end > start && data.get(j * nFft + end - 1) == 0.0f) {
+                    end--;
+                }
+
+                binStart[j] = start;
+                binEnd[j] = end;
+                weightOffset[j] = nWeights;
+                nWeights += end - start;
+            }
+
+            weights = new float[nWeights];
+            for (int j = 0; j < nMel; j++) {
+                for (int i = binStart[j]; i < binEnd[j]; i++) {
+                    weights[weightOffset[j] + i - binStart[j]] = data.get(j * nFft + i);
+                }
+            }
+        }
     }
 
-    private static class WhisperMel {
-        int nLen = 0;
-        int nMel = 0;
-        float[] data;
+    private static class MelScratch {
+        final float[] fftIn = new float[WHISPER_N_FFT];
+        final float[] fftScratch = new float[WHISPER_N_FFT];
+        final float[] fftOut = new float[2 * (WHISPER_N_FFT / 2 + 1)];
     }
 
     private static class InputLang {
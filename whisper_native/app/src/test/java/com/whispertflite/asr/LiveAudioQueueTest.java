@@ -0,0 +1,88 @@
+package com.whispertflite.asr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class LiveAudioQueueTest {
+    // Same layout as the live queue in Whisper: 3 s chunks, 30 s window, two chunks pending
+    private static final int CHUNK_SAMPLES = 48000;
+    private static final int WINDOW_SAMPLES = 480000;
+    private static final int MAX_PENDING_SAMPLES = 2 * CHUNK_SAMPLES;
+    private static final int PADDING_SAMPLES = 4800;
+
+    private static float[] noise(int nSamples) {
+        Random random = new Random(1);
+        float[] samples = new float[nSamples];
+        for (int i = 0; i < nSamples; i++) {
+            samples[i] = random.nextFloat() - 0.5f;
+        }
+        return samples;
+    }
+
+    private static LiveAudioQueue newQueue(LiveAudioQueue.Policy policy) {
+        LiveAudioQueue queue = new LiveAudioQueue(CHUNK_SAMPLES, WINDOW_SAMPLES, MAX_PENDING_SAMPLES, policy);
+        queue.setVoiceActivityDetector(new VoiceActivityDetector(), PADDING_SAMPLES);
+        return queue;
+    }
+
+    // Runs take() on another thread so a hang fails the test instead of the run
+    private static boolean take(LiveAudioQueue queue) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> taken = executor.submit((Callable<Boolean>) queue::take);
+            return taken.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertStreamHandedOut(LiveAudioQueue queue, int nSamples) throws Exception {
+        int total = 0;
+        while (true) {
+            assertTrue(take(queue));
+            total += queue.windowLength();
+            boolean last = queue.windowEndsStream();
+            queue.release();
+            if (last) {
+                break;
+            }
+        }
+        assertEquals(nSamples, total + queue.getSilentSamples());
+    }
+
+    @Test
+    public void endOfStreamHandsOutSpeechInProgress() throws Exception {
+        for (LiveAudioQueue.Policy policy : LiveAudioQueue.Policy.values()) {
+            LiveAudioQueue queue = newQueue(policy);
+            // Speech still in progress, less than max pending so BLOCK does not wait
+            float[] speech = noise(80000);
+            queue.write(speech, 0, speech.length);
+            queue.endOfStream();
+            assertStreamHandedOut(queue, speech.length);
+        }
+    }
+
+    @Test
+    public void blockWindowStaysWithinTranscriptionWindow() throws Exception {
+        LiveAudioQueue queue = new LiveAudioQueue(CHUNK_SAMPLES, WINDOW_SAMPLES, MAX_PENDING_SAMPLES,
+                LiveAudioQueue.Policy.BLOCK);
+        queue.setVoiceActivityDetector(new VoiceActivityDetector(), PADDING_SAMPLES);
+        // The ring rounds its capacity up to a power of two, past the window
+        queue.setMaxPendingSamples(524288);
+        float[] speech = noise(520000);
+        queue.write(speech, 0, speech.length);
+
+        assertTrue(take(queue));
+        assertTrue(queue.windowLength() <= WINDOW_SAMPLES);
+        assertTrue(queue.windowLength() > 0);
+    }
+}
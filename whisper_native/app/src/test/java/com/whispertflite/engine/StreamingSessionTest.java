@@ -0,0 +1,74 @@
+package com.whispertflite.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import com.whispertflite.utils.WhisperUtil;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class StreamingSessionTest {
+    private static final String VOCAB_PATH = "src/main/assets/filters_vocab_en.bin";
+    private static final float[] SECOND = new float[WhisperUtil.WHISPER_SAMPLE_RATE];
+
+    private static WhisperUtil sWhisperUtil;
+
+    @BeforeClass
+    public static void loadFilters() throws Exception {
+        sWhisperUtil = new WhisperUtil();
+        sWhisperUtil.loadFiltersAndVocab(false, VOCAB_PATH);
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        sWhisperUtil.shutdown();
+    }
+
+    // Session whose runs return the given hypotheses in turn, one per second of audio
+    private static StreamingSession scripted(String... hypotheses) {
+        Iterator<String> runs = Arrays.asList(hypotheses).iterator();
+        StreamingSession session = new StreamingSession(sWhisperUtil, melExtractor -> runs.next());
+        session.setStableRuns(2);
+        return session;
+    }
+
+    private static String run(StreamingSession session, int nRuns) {
+        StringBuilder committed = new StringBuilder();
+        for (int i = 0; i < nRuns; i++) {
+            committed.append(session.push(SECOND, 0, SECOND.length));
+        }
+        committed.append(session.flush());
+        return committed.toString();
+    }
+
+    @Test
+    public void commitsStableWordsOnce() {
+        StreamingSession session = scripted("hello", "hello world", "hello world again", "hello world again today");
+        run(session, 4);
+        assertEquals("hello world again today", session.getTranscript());
+    }
+
+    @Test
+    public void alignsHypothesisSplitIntoOtherWords() {
+        StreamingSession session = scripted("the cat sat x", "the cat sat y", "the cat sat on", "thecat sat on the mat");
+        run(session, 4);
+        assertEquals("the cat sat on the mat", session.getTranscript());
+    }
+
+    @Test
+    public void uncommittedSkipsCommittedLetters() {
+        assertEquals("on the mat", StreamingSession.uncommitted(
+                LongFormTranscriber.words("thecat sat", 0, null), "the cat sat on the mat"));
+        assertEquals("on the mat", StreamingSession.uncommitted(
+                LongFormTranscriber.words("the cat sat", 0, null), "thecat sat on the mat"));
+        assertEquals("", StreamingSession.uncommitted(
+                LongFormTranscriber.words("the cat sat", 0, null), "the cat sat"));
+        // Committed words heard differently: as many letters are skipped
+        assertEquals("on the mat", StreamingSession.uncommitted(
+                LongFormTranscriber.words("the cat sad", 0, null), "the cat sat on the mat"));
+    }
+}